@@ -0,0 +1,64 @@
+package example;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Application data echoes per second over an established session, over memory
+ * buffers.
+ * 
+ * An echo is the client wrapping a record, the session unwrapping it and wrapping
+ * the echo, and the client unwrapping that. Run with -prof gc to get the
+ * allocation rate per echo.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Fork(value = 1, jvmArgsAppend = "-Dlog.level=0")
+public class EchoBenchmark {
+	@Param({ "16", "1024", "8192" })
+	public int size;
+
+	private LoopbackServer server;
+	private ByteBuffer appData;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		SSLContext sslContext = Main.getDTLSContext();
+		DtlsServerConfig config = new DtlsServerConfig();
+		config.setOperation(Operation.FULL);
+		server = new LoopbackServer(config, sslContext);
+		server.connect(sslContext);
+		server.handshake();
+		appData = ByteBuffer.allocateDirect(size);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		server.interrupt();
+	}
+
+	@Benchmark
+	public int echo() throws Exception {
+		appData.clear();
+		ByteBuffer echo = server.echo(appData);
+		if (echo.remaining() != size) {
+			throw new IllegalStateException("echo of " + echo.remaining() + " bytes, expected " + size);
+		}
+		return echo.remaining();
+	}
+}
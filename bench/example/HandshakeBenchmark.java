@@ -0,0 +1,72 @@
+package example;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Full handshakes per second between a client engine and a server session, 
+ * over memory buffers.
+ * 
+ * Each invocation creates a fresh engine on both sides and runs the handshake
+ * through the session's own handshake code. Run with -prof gc to get the
+ * allocation rate per handshake.
+ * 
+ * The keys parameter picks the server's keys: RSA, EC (ECDSA P-256) or both,
+ * in which case the server picks EC. The client's part is timed as well, it
+ * verifies the server's signature, which is cheaper for RSA than for ECDSA.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Dlog.level=0")
+public class HandshakeBenchmark {
+	@Param({ "RSA", "EC", "RSA_EC" })
+	public String keys;
+
+	private SSLContext sslContext;
+	private LoopbackServer server;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		switch (keys) {
+		case "RSA":
+			sslContext = Main.getDTLSContext("rsa2048.jks");
+			break;
+		case "EC":
+			sslContext = Main.getDTLSContext("ec256.jks");
+			break;
+		default:
+			sslContext = Main.getDTLSContext("rsa2048.jks", "ec256.jks");
+		}
+		DtlsServerConfig config = new DtlsServerConfig();
+		config.setOperation(Operation.FULL);
+		server = new LoopbackServer(config, sslContext);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		server.interrupt();
+	}
+
+	@Benchmark
+	public Object fullHandshake() throws Exception {
+		server.connect(sslContext);
+		server.handshake();
+		return server.getClient().getSession();
+	}
+}
@@ -1,3 +1,8 @@
 #!/bin/bash
+# with an archive built by 'ant cds', the jar is run with class data sharing
+if [ -f jsse-dtls-testserver.jsa ] && [ -f jsse-dtls-testserver.jar ]; then
+	java -XX:SharedArchiveFile=jsse-dtls-testserver.jsa -cp jsse-dtls-testserver.jar example.Main $@
+	exit
+fi
 javac -d bin/ -sourcepath src/ src/example/Main.java
 java -cp bin/ example.Main $@
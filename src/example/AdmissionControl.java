@@ -0,0 +1,124 @@
+package example;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.sun.management.OperatingSystemMXBean;
+
+/**
+ * Decides whether a new peer may have a session, before the server creates
+ * one for it, so that no source can have the server do handshakes at will.
+ *
+ * New sessions are limited by token buckets, one per source and one for all
+ * of them, each allowing a rate of sessions per second with bursts of a given
+ * size. A source is an IPv4 address cut to a prefix length, or the /64 of an
+ * IPv6 address. Besides, no new sessions are admitted at all while the
+ * process takes more than a given share of the CPUs, so that established
+ * sessions keep what they need to echo.
+ *
+ * The buckets are kept as in the generic cell rate algorithm: a bucket is the
+ * time it will be full again, which admitting a session moves ahead by the
+ * interval between sessions, and which may be at most the burst ahead of
+ * now. Sources are hashed into a fixed number of buckets, sources which share
+ * one share their limit. Any thread may call {@link #admit}, buckets are
+ * updated with compare-and-set.
+ *
+ * The server only asks about datagrams which parse as a ClientHello. With the
+ * cookie prefilter it only asks once the cookie has been verified, so every
+ * handshake is charged once, and only to a peer which receives at its source
+ * address. Without it, a source's limit may be used up by anyone spoofing the
+ * source's addresses.
+ */
+class AdmissionControl {
+	private static final int SLOT_BITS = 14;
+	// how long a sample of the CPU load is used for
+	private static final long CPU_SAMPLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final long sourceInterval;
+	private final long sourceTolerance;
+	private final long globalInterval;
+	private final long globalTolerance;
+	private final int prefixLength;
+	private final double cpuLoadLimit;
+
+	private final AtomicLongArray sources = new AtomicLongArray(1 << SLOT_BITS);
+	private final AtomicLongArray global = new AtomicLongArray(1);
+	private final long start = System.nanoTime();
+
+	private final OperatingSystemMXBean os;
+	private volatile long cpuSampleTime;
+	private volatile boolean overloaded;
+
+	AdmissionControl(DtlsServerConfig config) {
+		long burst = Math.max(1, config.getHandshakeBurst());
+		sourceInterval = interval(config.getSourceHandshakeRate());
+		sourceTolerance = sourceInterval * (burst - 1);
+		globalInterval = interval(config.getHandshakeRate());
+		globalTolerance = globalInterval * (burst - 1);
+		prefixLength = config.getSourcePrefixLength();
+		cpuLoadLimit = config.getCpuLoadLimit();
+		os = cpuLoadLimit > 0 ? (OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean() : null;
+	}
+
+	/*
+	 * Whether the config limits new sessions at all.
+	 */
+	static boolean isEnabled(DtlsServerConfig config) {
+		return config.getSourceHandshakeRate() > 0 || config.getHandshakeRate() > 0 || config.getCpuLoadLimit() > 0;
+	}
+
+	boolean admit(InetSocketAddress peerAddr) {
+		long now = System.nanoTime() - start;
+		if (cpuLoadLimit > 0 && isOverloaded(now)) {
+			return false;
+		}
+		// a source over its limit should not use up the others' share
+		if (sourceInterval > 0 && !take(sources, slot(peerAddr.getAddress()), now, sourceInterval, sourceTolerance)) {
+			return false;
+		}
+		return globalInterval == 0 || take(global, 0, now, globalInterval, globalTolerance);
+	}
+
+	private static boolean take(AtomicLongArray buckets, int slot, long now, long interval, long tolerance) {
+		while (true) {
+			long full = buckets.get(slot);
+			if (full - now > tolerance) {
+				return false;
+			}
+			if (buckets.compareAndSet(slot, full, Math.max(full, now) + interval)) {
+				return true;
+			}
+		}
+	}
+
+	/*
+	 * The load is sampled by whichever thread finds the last sample too old.
+	 */
+	private boolean isOverloaded(long now) {
+		if (now - cpuSampleTime > CPU_SAMPLE_NANOS) {
+			cpuSampleTime = now;
+			overloaded = os.getProcessCpuLoad() > cpuLoadLimit;
+		}
+		return overloaded;
+	}
+
+	private int slot(InetAddress address) {
+		byte[] bytes = address.getAddress();
+		long source;
+		if (bytes.length == 4) {
+			long mask = prefixLength >= 32 ? 0xFFFFFFFFL : 0xFFFFFFFFL << (32 - prefixLength) & 0xFFFFFFFFL;
+			source = ByteBuffer.wrap(bytes).getInt() & mask;
+		} else {
+			source = ByteBuffer.wrap(bytes).getLong();
+		}
+		return (int) ((source * 0x9E3779B97F4A7C15L) >>> (64 - SLOT_BITS));
+	}
+
+	private static long interval(int rate) {
+		return rate > 0 ? TimeUnit.SECONDS.toNanos(1) / rate : 0;
+	}
+}
@@ -0,0 +1,58 @@
+package example;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of direct buffers, all of the same size.
+ *
+ * Buffers are leased for a single operation (e.g. receiving a datagram or
+ * wrapping a record) and released once the operation is done, so that in
+ * steady state no buffers get allocated. If the pool runs dry a new buffer is
+ * allocated, if it is full a released buffer is left to the GC.
+ * 
+ * The size of the buffers only ever grows, as SSLEngines ask for larger
+ * buffers once they have negotiated a cipher suite.
+ */
+class BufferPool {
+	private final AtomicInteger bufferSize;
+	private final ArrayBlockingQueue<ByteBuffer> buffers;
+
+	BufferPool(int bufferSize, int capacity) {
+		this.bufferSize = new AtomicInteger(bufferSize);
+		this.buffers = new ArrayBlockingQueue<>(capacity);
+	}
+
+	/*
+	 * Returns a cleared buffer of the pool's size.
+	 */
+	ByteBuffer lease() {
+		ByteBuffer buffer = buffers.poll();
+		int size = bufferSize.get();
+		if (buffer == null || buffer.capacity() < size) {
+			buffer = ByteBuffer.allocateDirect(size);
+		}
+		return buffer;
+	}
+
+	/*
+	 * Returns a cleared buffer of at least the given size, growing the pool's
+	 * buffers to that size if they are smaller.
+	 */
+	ByteBuffer lease(int minSize) {
+		if (minSize > bufferSize.get()) {
+			// threads growing the pool at once may not shrink it back
+			bufferSize.accumulateAndGet(minSize, Math::max);
+			buffers.clear();
+		}
+		return lease();
+	}
+
+	void release(ByteBuffer buffer) {
+		if (buffer.capacity() >= bufferSize.get()) {
+			buffer.clear();
+			buffers.offer(buffer);
+		}
+	}
+}
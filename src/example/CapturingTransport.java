@@ -0,0 +1,62 @@
+package example;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * A transport recording every datagram which passes through another one into
+ * a {@link PacketCapture}.
+ */
+class CapturingTransport implements DatagramTransport {
+	private final DatagramTransport transport;
+	private final PacketCapture capture;
+
+	CapturingTransport(DatagramTransport transport, PacketCapture capture) {
+		this.transport = transport;
+		this.capture = capture;
+	}
+
+	@Override
+	public void await(long timeoutMillis) throws IOException {
+		transport.await(timeoutMillis);
+	}
+
+	@Override
+	public void wakeup() {
+		transport.wakeup();
+	}
+
+	@Override
+	public SocketAddress receive(ByteBuffer dst) throws IOException {
+		int start = dst.position();
+		SocketAddress peerAddr = transport.receive(dst);
+		if (peerAddr != null) {
+			capture.record(PacketCapture.RECEIVED, (InetSocketAddress) peerAddr,
+					dst.duplicate().limit(dst.position()).position(start));
+		}
+		return peerAddr;
+	}
+
+	@Override
+	public int send(ByteBuffer src, SocketAddress target) throws IOException {
+		ByteBuffer datagram = src.duplicate();
+		int sent = transport.send(src, target);
+		// a datagram the socket had no room for was never sent
+		if (sent > 0) {
+			capture.record(PacketCapture.SENT, (InetSocketAddress) target, datagram);
+		}
+		return sent;
+	}
+
+	@Override
+	public int getLocalPort() {
+		return transport.getLocalPort();
+	}
+
+	@Override
+	public void close() throws IOException {
+		transport.close();
+	}
+}
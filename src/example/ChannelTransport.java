@@ -0,0 +1,74 @@
+package example;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+
+/**
+ * A transport over a UDP socket, a non-blocking channel the server thread
+ * waits on in a selector.
+ */
+public class ChannelTransport implements DatagramTransport {
+	private final DatagramChannel channel;
+	private final Selector selector;
+
+	public ChannelTransport(InetSocketAddress address) throws IOException {
+		this(address, false);
+	}
+
+	/**
+	 * @param reusePort whether other sockets may bind the same port, in which
+	 * case the kernel spreads peers across them
+	 */
+	public ChannelTransport(InetSocketAddress address, boolean reusePort) throws IOException {
+		channel = DatagramChannel.open();
+		if (reusePort) {
+			if (!channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+				channel.close();
+				throw new IOException("SO_REUSEPORT is not supported on this platform");
+			}
+			channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+		}
+		channel.bind(address);
+		channel.configureBlocking(false);
+		selector = Selector.open();
+		channel.register(selector, SelectionKey.OP_READ);
+	}
+
+	@Override
+	public void await(long timeoutMillis) throws IOException {
+		selector.select(timeoutMillis);
+		selector.selectedKeys().clear();
+	}
+
+	@Override
+	public void wakeup() {
+		selector.wakeup();
+	}
+
+	@Override
+	public SocketAddress receive(ByteBuffer dst) throws IOException {
+		return channel.receive(dst);
+	}
+
+	@Override
+	public int send(ByteBuffer src, SocketAddress target) throws IOException {
+		return channel.send(src, target);
+	}
+
+	@Override
+	public int getLocalPort() {
+		return channel.socket().getLocalPort();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+		selector.close();
+	}
+}
@@ -0,0 +1,183 @@
+package example;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * A connection to the {@link ThreadStarter}, typically from a learner, with the
+ * server it has been given.
+ *
+ * Commands are read one per line: reset (or an empty line) replaces the server
+ * with a fresh one and answers with its port, exit shuts the whole thread
+ * starter down and close ends just this session. The session also ends when
+ * the connection is closed, taking its server down, and the thread starter
+ * with it if no other session is open.
+ * 
+ * A query command runs a whole input sequence against a fresh SSLEngine, with
+ * no sockets involved: 
+ * <pre>query &lt;datagram&gt; &lt;datagram&gt; ...</pre>
+ * with the datagrams in hex. It is answered by a line holding, for every input
+ * datagram, the datagrams sent in response joined by commas, or - if there
+ * were none. Queries can be pipelined, answers are written in order and only
+ * flushed once no further commands are waiting.
+ * 
+ * The stats command is answered by a line with the metrics of all servers of
+ * the thread starter, see {@link ServerMetrics}.
+ */
+class CommandSession implements Runnable {
+	private final ThreadStarter starter;
+	private final ServerPool serverPool;
+	private final Supplier<QueryExecutor> queryExecutorSupplier;
+	private final Socket cmdSocket;
+	private final String errorFileName;
+	private DtlsServer dtlsServerThread;
+	private QueryExecutor queryExecutor;
+	// true if the session was ended by the close command
+	private boolean closeCommand;
+
+	/*
+	 * The query executor supplier may be null, the query command is then not available.
+	 */
+	CommandSession(ThreadStarter starter, ServerPool serverPool, Supplier<QueryExecutor> queryExecutorSupplier,
+			Socket cmdSocket, String errorFileName) {
+		this.starter = starter;
+		this.serverPool = serverPool;
+		this.queryExecutorSupplier = queryExecutorSupplier;
+		this.cmdSocket = cmdSocket;
+		this.errorFileName = errorFileName;
+	}
+
+	public void run() {
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(cmdSocket.getInputStream()));
+			BufferedWriter out = new BufferedWriter(new OutputStreamWriter(cmdSocket.getOutputStream()));
+			String cmd;
+			while ((cmd = in.readLine()) != null) {
+				if (cmd.trim().split("\\s+", 2)[0].equals("query")) {
+					out.write(query(cmd));
+					out.newLine();
+					if (!in.ready()) {
+						out.flush();
+					}
+					continue;
+				}
+				System.out.println("Received: " + cmd);
+				switch (cmd.trim()) {
+				case "reset":
+				case "":
+					// servers are bound to ports of their own,
+					// so the old one can be stopped once the new one is handed out
+					DtlsServer server = serverPool.take();
+					DtlsServer oldServer = replaceServer(server);
+
+					out.write(String.valueOf(server.getPort()));
+					out.newLine();
+					out.flush();
+					if (oldServer != null) {
+						serverPool.retire(oldServer);
+					}
+					break;
+				case "stats":
+					ServerMetrics metrics = starter.getMetrics();
+					out.write(metrics != null ? metrics.getSummary() : "error: no metrics");
+					out.newLine();
+					out.flush();
+					break;
+				case "exit":
+					starter.shutDown();
+					return;
+				case "close":
+					closeCommand = true;
+					return;
+				}
+			}
+			System.out.println("Received: null");
+		} catch (Exception e) {
+			if (!cmdSocket.isClosed()) {
+				logError(e);
+			}
+		} finally {
+			close();
+			starter.sessionEnded(this, !closeCommand);
+		}
+	}
+
+	private String query(String cmd) throws Exception {
+		if (queryExecutorSupplier == null) {
+			return "error: queries are not supported";
+		}
+		if (queryExecutor == null) {
+			queryExecutor = queryExecutorSupplier.get();
+		}
+
+		HexFormat hex = HexFormat.of();
+		String[] args = cmd.trim().split("\\s+");
+		List<ByteBuffer> inputs = new ArrayList<>(args.length - 1);
+		try {
+			for (int i = 1; i < args.length; i++) {
+				inputs.add(ByteBuffer.wrap(hex.parseHex(args[i])));
+			}
+		} catch (IllegalArgumentException e) {
+			return "error: " + e.getMessage();
+		}
+
+		StringBuilder answer = new StringBuilder();
+		for (List<ByteBuffer> output : queryExecutor.execute(inputs)) {
+			if (answer.length() > 0) {
+				answer.append(' ');
+			}
+			if (output.isEmpty()) {
+				answer.append('-');
+			}
+			for (int i = 0; i < output.size(); i++) {
+				ByteBuffer datagram = output.get(i);
+				if (i > 0) {
+					answer.append(',');
+				}
+				answer.append(hex.formatHex(datagram.array(), datagram.position(), datagram.limit()));
+			}
+		}
+		return answer.toString();
+	}
+
+	private synchronized DtlsServer replaceServer(DtlsServer server) {
+		DtlsServer oldServer = dtlsServerThread;
+		dtlsServerThread = server;
+		return oldServer;
+	}
+
+	private void logError(Exception e) {
+		// sessions may fail concurrently, hence the errors are appended
+		try (PrintWriter errorPw = new PrintWriter(new FileWriter(errorFileName, true))) {
+			e.printStackTrace(errorPw);
+		} catch (IOException ioe) {
+			ioe.printStackTrace();
+		}
+	}
+
+	/*
+	 * Stops the session's server and closes the connection, may be called from any thread.
+	 */
+	synchronized void close() {
+		if (dtlsServerThread != null) {
+			serverPool.retire(dtlsServerThread);
+			dtlsServerThread = null;
+		}
+		try {
+			cmdSocket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,332 @@
+package example;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+
+/**
+ * Decides which new peers get a session, so that spoofed ClientHellos do not
+ * leave sessions and SSLEngines behind.
+ *
+ * Datagrams from a peer without a session are dropped unless they start with a
+ * complete ClientHello. A ClientHello without a valid cookie is answered with
+ * a HelloVerifyRequest. Only a ClientHello carrying the cookie the peer was
+ * given is handed back to the server, which then creates an engine and a
+ * session for the peer.
+ *
+ * The cookies themselves come from JSSE, which computes them from a secret
+ * private to the SSLContext, and which insists on its own cookie exchange
+ * before any handshake. So the cookies are not ours to make: a single priming
+ * engine is fed every ClientHello without its cookie, and its
+ * HelloVerifyRequest is taken as the one to send to, or expect from, the peer.
+ * The ClientHellos are numbered one after the other, by message_seq and record
+ * sequence number, so that the engine takes each for the next try of a single
+ * peer rather than for a retransmission. The priming engine runs on the task
+ * executor, if the server has one, otherwise on the server thread.
+ *
+ * This keeps peers which never receive at their address from holding sessions
+ * and engines, it does not make ClientHellos free: each still costs an unwrap
+ * and a wrap of the priming engine, and one that engine rejects costs a new
+ * priming engine. Nor are JSSE's cookies bound to the peer's address, they are
+ * computed from the ClientHello and the secret alone. A ClientHello with a
+ * valid cookie, once captured, is admitted from any source it is replayed
+ * from, each time getting a session and the server's full flight. Limiting new
+ * sessions per source with {@link AdmissionControl} bounds that.
+ */
+class CookiePrefilter {
+	private static final int RECORD_HEADER_LENGTH = 13;
+	private static final int HANDSHAKE_HEADER_LENGTH = 12;
+	private static final byte CONTENT_TYPE_HANDSHAKE = 22;
+	private static final byte HANDSHAKE_TYPE_CLIENT_HELLO = 1;
+	private static final byte HANDSHAKE_TYPE_HELLO_VERIFY_REQUEST = 3;
+
+	// offset of the session id length in the ClientHello body, following client_version and random
+	private static final int SESSION_ID_OFFSET = 2 + 32;
+
+	// ClientHellos waiting for the priming engine, further ones are dropped
+	private static final int MAX_PENDING = 256;
+	// ClientHellos fed to a priming engine before it is replaced, so that message_seq does not wrap
+	private static final int MAX_PRIMED = 0xFFFF;
+
+	/*
+	 * A ClientHello from a peer without a session, in a buffer of the server's
+	 * packet pool.
+	 */
+	static class Hello {
+		final ByteBuffer datagram;
+		final InetSocketAddress peerAddr;
+
+		Hello(ByteBuffer datagram, InetSocketAddress peerAddr) {
+			this.datagram = datagram;
+			this.peerAddr = peerAddr;
+		}
+	}
+
+	private final DtlsServer server;
+	private final Executor executor;
+	private final BlockingQueue<Hello> pending = new ArrayBlockingQueue<>(MAX_PENDING);
+	private final AtomicBoolean verifying = new AtomicBoolean();
+
+	// only used by one verification at a time
+	private SSLEngine primer;
+	private SSLContext primerContext;
+	private int primed;
+
+	CookiePrefilter(DtlsServer server) {
+		this.server = server;
+		this.executor = server.getTaskExecutor();
+	}
+
+	/*
+	 * Verifies the cookie of a datagram from a peer without a session. A
+	 * ClientHello with a valid cookie is handed to {@link DtlsServer#helloVerified},
+	 * any other ClientHello is answered with a HelloVerifyRequest. The datagram
+	 * itself is left untouched. Called on the server thread.
+	 */
+	void verify(ByteBuffer datagram, InetSocketAddress peerAddr) {
+		if (findCookie(datagram) < 0) {
+			Log.info("no ClientHello from {}, dropping packet", peerAddr);
+			return;
+		}
+		ByteBuffer copy = server.getPacketPool().lease();
+		copy.put(datagram.duplicate()).flip();
+		Hello hello = new Hello(copy, peerAddr);
+		if (executor == null) {
+			verify(hello);
+			return;
+		}
+		if (!pending.offer(hello)) {
+			Log.info("too many ClientHellos to verify, dropping packet from {}", peerAddr);
+			server.getPacketPool().release(copy);
+			return;
+		}
+		if (verifying.compareAndSet(false, true)) {
+			executor.execute(this::verifyPending);
+		}
+	}
+
+	// verifies the pending ClientHellos one after the other, as they share the priming engine
+	private void verifyPending() {
+		do {
+			Hello hello;
+			while ((hello = pending.poll()) != null) {
+				verify(hello);
+			}
+			verifying.set(false);
+		} while (!pending.isEmpty() && verifying.compareAndSet(false, true));
+	}
+
+	private void verify(Hello hello) {
+		ByteBuffer clientHello = hello.datagram;
+		int cookieOffset = findCookie(clientHello);
+		int cookieLength = clientHello.get(cookieOffset) & 0xFF;
+		ByteBuffer helloVerifyRequest = server.getPacketPool().lease();
+		boolean verified = false;
+		try {
+			if (!prime(clientHello, cookieOffset, helloVerifyRequest)) {
+				Log.info("no HelloVerifyRequest for ClientHello from {}, dropping packet", hello.peerAddr);
+			} else if (cookieLength > 0 && hasCookie(helloVerifyRequest, clientHello, cookieOffset)) {
+				verified = true;
+				server.helloVerified(hello);
+			} else {
+				answer(helloVerifyRequest, clientHello);
+				Log.info("sending HelloVerifyRequest to {}", hello.peerAddr);
+				server.send(helloVerifyRequest, hello.peerAddr);
+			}
+		} catch (Exception e) {
+			Log.severe("Could not verify the ClientHello from {}", hello.peerAddr);
+			Log.stackTrace(e);
+		} finally {
+			server.getPacketPool().release(helloVerifyRequest);
+			if (!verified) {
+				server.getPacketPool().release(clientHello);
+			}
+		}
+	}
+
+	// has the priming engine wrap the HelloVerifyRequest for the ClientHello into dst, returning false if it did not
+	private boolean prime(ByteBuffer clientHello, int cookieOffset, ByteBuffer dst) throws Exception {
+		SSLContext context = server.getSSLContext();
+		if (primer == null || primerContext != context || primed > MAX_PRIMED) {
+			primer = server.createSSLEngine(context);
+			primer.beginHandshake();
+			primerContext = context;
+			primed = 0;
+		}
+		ByteBuffer initialHello = server.getPacketPool().lease();
+		try {
+			removeCookie(clientHello, cookieOffset, primed++, initialHello);
+			if (produceHelloVerifyRequest(primer, initialHello, dst)) {
+				return true;
+			}
+			// the engine rejected the ClientHello, who knows what state it is in
+			primer = null;
+			return false;
+		} catch (Exception e) {
+			primer = null;
+			throw e;
+		} finally {
+			server.getPacketPool().release(initialHello);
+		}
+	}
+
+	/*
+	 * Returns a new engine which is waiting for the datagram, a ClientHello whose
+	 * cookie has been verified, or null if the engine did not take it. JSSE only
+	 * starts a handshake on a ClientHello at message_seq 0, hence the engine is
+	 * first fed the one the peer started with. Called on the server thread.
+	 */
+	SSLEngine createEngine(ByteBuffer clientHello) throws Exception {
+		SSLEngine engine = server.createSSLEngine();
+		engine.beginHandshake();
+		ByteBuffer initialHello = server.getPacketPool().lease();
+		ByteBuffer helloVerifyRequest = server.getPacketPool().lease();
+		try {
+			int cookieOffset = findCookie(clientHello);
+			removeCookie(clientHello, cookieOffset, 0, initialHello);
+			return produceHelloVerifyRequest(engine, initialHello, helloVerifyRequest) ? engine : null;
+		} finally {
+			server.getPacketPool().release(initialHello);
+			server.getPacketPool().release(helloVerifyRequest);
+		}
+	}
+
+	/*
+	 * Whether the datagram starts with a complete, unfragmented ClientHello.
+	 */
+	static boolean isClientHello(ByteBuffer datagram) {
+		return findCookie(datagram) >= 0;
+	}
+
+	/*
+	 * Returns the absolute offset of the cookie length in a datagram starting with
+	 * a complete, unfragmented ClientHello record, or -1 for any other datagram.
+	 */
+	private static int findCookie(ByteBuffer datagram) {
+		int record = datagram.position();
+		if (datagram.remaining() < RECORD_HEADER_LENGTH + HANDSHAKE_HEADER_LENGTH + SESSION_ID_OFFSET + 2
+				|| datagram.get(record) != CONTENT_TYPE_HANDSHAKE || datagram.getShort(record + 3) != 0) {
+			return -1;
+		}
+		int recordLength = datagram.getShort(record + 11) & 0xFFFF;
+		if (RECORD_HEADER_LENGTH + recordLength > datagram.remaining()) {
+			return -1;
+		}
+
+		int handshake = record + RECORD_HEADER_LENGTH;
+		int length = getInt24(datagram, handshake + 1);
+		if (datagram.get(handshake) != HANDSHAKE_TYPE_CLIENT_HELLO || getInt24(datagram, handshake + 6) != 0
+				|| getInt24(datagram, handshake + 9) != length || HANDSHAKE_HEADER_LENGTH + length > recordLength) {
+			return -1;
+		}
+
+		int body = handshake + HANDSHAKE_HEADER_LENGTH;
+		int cookie = body + SESSION_ID_OFFSET + 1 + (datagram.get(body + SESSION_ID_OFFSET) & 0xFF);
+		if (cookie >= body + length || cookie + 1 + (datagram.get(cookie) & 0xFF) > body + length) {
+			return -1;
+		}
+		return cookie;
+	}
+
+	/*
+	 * Writes the ClientHello the peer started with, that is without the cookie,
+	 * into the buffer, flipped for reading. Its message_seq and record sequence
+	 * number are both seq, the engine takes a ClientHello numbered lower than
+	 * the last one it got for a retransmission or a replay.
+	 */
+	private static void removeCookie(ByteBuffer clientHello, int cookieOffset, int seq, ByteBuffer dst) {
+		int cookieLength = clientHello.get(cookieOffset) & 0xFF;
+		int record = clientHello.position();
+		int handshake = record + RECORD_HEADER_LENGTH;
+		int length = getInt24(clientHello, handshake + 1) - cookieLength;
+		int end = handshake + HANDSHAKE_HEADER_LENGTH + getInt24(clientHello, handshake + 1);
+
+		// record header, with the sequence number and the shortened length
+		dst.put(clientHello.duplicate().limit(record + 5).position(record));
+		putInt24(dst, 0);
+		putInt24(dst, seq);
+		dst.putShort((short) (HANDSHAKE_HEADER_LENGTH + length));
+
+		// handshake header, with the shortened length and the message_seq
+		dst.put(HANDSHAKE_TYPE_CLIENT_HELLO);
+		putInt24(dst, length);
+		dst.putShort((short) seq);
+		putInt24(dst, 0);
+		putInt24(dst, length);
+
+		// body up to the cookie, an empty cookie and the rest of the body
+		dst.put(clientHello.duplicate().limit(cookieOffset).position(handshake + HANDSHAKE_HEADER_LENGTH));
+		dst.put((byte) 0);
+		dst.put(clientHello.duplicate().limit(end).position(cookieOffset + 1 + cookieLength));
+		dst.flip();
+	}
+
+	/*
+	 * Numbers the HelloVerifyRequest after the ClientHello it answers, as a
+	 * server with an engine for the peer would: the record sequence number is
+	 * the ClientHello's (RFC 6347, 4.2.1), and so is the message_seq.
+	 */
+	private static void answer(ByteBuffer helloVerifyRequest, ByteBuffer clientHello) {
+		int record = clientHello.position();
+		int reply = helloVerifyRequest.position();
+		for (int i = 5; i < 11; i++) {
+			helloVerifyRequest.put(reply + i, clientHello.get(record + i));
+		}
+		helloVerifyRequest.putShort(reply + RECORD_HEADER_LENGTH + 4,
+				clientHello.getShort(record + RECORD_HEADER_LENGTH + 4));
+	}
+
+	// feeds the ClientHello to the engine, returning true if a HelloVerifyRequest was wrapped into dst
+	private boolean produceHelloVerifyRequest(SSLEngine engine, ByteBuffer clientHello, ByteBuffer dst)
+			throws Exception {
+		ByteBuffer appData = server.getAppPool().lease();
+		try {
+			engine.unwrap(clientHello, appData);
+			Runnable runnable;
+			while ((runnable = engine.getDelegatedTask()) != null) {
+				runnable.run();
+			}
+			if (engine.getHandshakeStatus() != HandshakeStatus.NEED_WRAP) {
+				return false;
+			}
+			appData.clear().flip();
+			engine.wrap(appData, dst);
+		} finally {
+			server.getAppPool().release(appData);
+		}
+		dst.flip();
+		return dst.remaining() > RECORD_HEADER_LENGTH + HANDSHAKE_HEADER_LENGTH + 3
+				&& dst.get(RECORD_HEADER_LENGTH) == HANDSHAKE_TYPE_HELLO_VERIFY_REQUEST;
+	}
+
+	// checks whether the ClientHello carries the cookie of the HelloVerifyRequest
+	private static boolean hasCookie(ByteBuffer helloVerifyRequest, ByteBuffer clientHello, int cookieOffset) {
+		// the cookie follows the server_version
+		int cookie = RECORD_HEADER_LENGTH + HANDSHAKE_HEADER_LENGTH + 2;
+		int length = helloVerifyRequest.get(cookie) & 0xFF;
+		if (length != (clientHello.get(cookieOffset) & 0xFF) || cookie + 1 + length > helloVerifyRequest.limit()) {
+			return false;
+		}
+		// no early exit, so as not to tell how much of a forged cookie is right
+		int diff = 0;
+		for (int i = 1; i <= length; i++) {
+			diff |= helloVerifyRequest.get(cookie + i) ^ clientHello.get(cookieOffset + i);
+		}
+		return diff == 0;
+	}
+
+	private static int getInt24(ByteBuffer buffer, int index) {
+		return ((buffer.get(index) & 0xFF) << 16) | ((buffer.get(index + 1) & 0xFF) << 8) | (buffer.get(index + 2) & 0xFF);
+	}
+
+	private static void putInt24(ByteBuffer buffer, int value) {
+		buffer.put((byte) (value >> 16)).put((byte) (value >> 8)).put((byte) value);
+	}
+}
@@ -0,0 +1,49 @@
+package example;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+
+/**
+ * Where a {@link DtlsServer} gets its datagrams from and sends them to.
+ *
+ * The server thread waits in {@link #await(long)} until datagrams may have arrived
+ * and then receives until there are none left. Any thread may cut the wait
+ * short with {@link #wakeup()}.
+ */
+public interface DatagramTransport {
+
+	/**
+	 * Blocks until datagrams may be ready to be received, {@link #wakeup()} is
+	 * called, the transport is closed or the timeout passes.
+	 * 
+	 * @param timeoutMillis the longest time to wait, 0 to wait indefinitely
+	 */
+	void await(long timeoutMillis) throws IOException;
+
+	/**
+	 * Makes a current or the next call to {@link #await(long)} return right away.
+	 */
+	void wakeup();
+
+	/**
+	 * Receives a datagram into the buffer without blocking.
+	 * 
+	 * @return the address the datagram came from, null if there was none
+	 */
+	SocketAddress receive(ByteBuffer dst) throws IOException;
+
+	/**
+	 * Sends the remaining bytes of the buffer as one datagram.
+	 * 
+	 * @return the number of bytes sent, 0 if the datagram was dropped
+	 */
+	int send(ByteBuffer src, SocketAddress target) throws IOException;
+
+	/**
+	 * The port datagrams are received on, 0 if the transport has none.
+	 */
+	int getLocalPort();
+
+	void close() throws IOException;
+}
@@ -0,0 +1,93 @@
+package example;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight recorder events of the server, all in the DTLS category, e.g. for
+ * <pre>jcmd &lt;pid&gt; JFR.start settings=profile</pre>
+ * The events are disabled unless a recording enables them (the default and
+ * profile settings do), until then all it costs is a check per event.
+ *
+ * Events are created and begun before the operation and committed after it,
+ * their fields only set if they are to be committed.
+ */
+final class DtlsEvents {
+
+	private DtlsEvents() {
+	}
+
+	@Name("example.HandshakeStep")
+	@Label("Handshake Step")
+	@Category("DTLS")
+	@Description("A step the SSLEngine asked for during a handshake")
+	static class HandshakeStep extends Event {
+		@Label("Peer")
+		String peer;
+
+		@Label("Handshake Status")
+		String handshakeStatus;
+	}
+
+	@Name("example.EngineOperation")
+	@Label("Engine Operation")
+	@Category("DTLS")
+	@Description("A wrap or unwrap of the SSLEngine")
+	static class EngineOperation extends Event {
+		@Label("Peer")
+		String peer;
+
+		@Label("Operation")
+		String operation;
+
+		@Label("Status")
+		String status;
+
+		@Label("Handshake Status")
+		String handshakeStatus;
+
+		@Label("Bytes Consumed")
+		@DataAmount
+		int bytesConsumed;
+
+		@Label("Bytes Produced")
+		@DataAmount
+		int bytesProduced;
+	}
+
+	@Name("example.DelegatedTasks")
+	@Label("Delegated Tasks")
+	@Category("DTLS")
+	@Description("Delegated tasks of the SSLEngine, run one after the other")
+	static class DelegatedTasks extends Event {
+		@Label("Peer")
+		String peer;
+
+		@Label("Tasks")
+		int tasks;
+
+		@Label("On Task Executor")
+		boolean onTaskExecutor;
+	}
+
+	@Name("example.SessionCreated")
+	@Label("Session Created")
+	@Category("DTLS")
+	@Description("A session created for a new peer, including its SSLEngine unless one was ready")
+	static class SessionCreated extends Event {
+		@Label("Peer")
+		String peer;
+
+		@Label("Sessions")
+		@Description("Sessions of the server, including the new one")
+		int sessions;
+
+		@Label("Evicted")
+		@Description("Sessions evicted to make room for the new one")
+		int evicted;
+	}
+}
@@ -26,499 +26,435 @@
 package example;
 
 import java.io.IOException;
-import java.io.PrintStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
-import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
 
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLEngine;
-import javax.net.ssl.SSLEngineResult;
-import javax.net.ssl.SSLEngineResult.HandshakeStatus;
-import javax.net.ssl.SSLEngineResult.Status;
 import javax.net.ssl.SSLParameters;
-import javax.net.ssl.SSLPeerUnverifiedException;
 import javax.net.ssl.SSLSession;
 
 /**
  * A basic DTLS echo server built around JSSE's SSLEngine.
+ * 
+ * The server listens on a single socket and keeps a {@link PeerSession}, with
+ * its own SSLEngine, for every peer address it receives datagrams from.
+ * The socket is a non-blocking channel, the server thread sleeps in a selector
+ * until datagrams arrive and drives the SSLEngines from there. Instead of the
+ * socket, the server can be given another {@link DatagramTransport}, e.g. a
+ * {@link MemoryTransport} for a driver in the same JVM.
+ * Given a task executor, the SSLEngines' delegated tasks (the handshake crypto)
+ * run on it, so that the server thread can keep serving other peers meanwhile.
+ * Alternatively, sessions can each run on a thread of their own, see 
+ * {@link ExecutionMode}.
  */
 public class DtlsServer extends Thread {
 
-	private static int LOG_LEVEL = 1; // 0 no logging, 1 basic logging, 2 logging incl. method name
-	{
-		String level = System.getProperty("log.level");
-		if (level != null)
-			LOG_LEVEL = Integer.valueOf(level);
-	}
-	private static final int BUFFER_SIZE = 20240;
-	static final int SOCKET_TIMEOUT = 20000;
+	// how many buffers of each kind are kept around for reuse
+	private static final int POOL_CAPACITY = 64;
+	// timeouts are accurate to a tick, the wheel turns once in about 5 seconds
+	private static final long TICK_MILLIS = 10;
+	private static final int WHEEL_SLOTS = 512;
 
-	private InetSocketAddress peerAddr;
-	private DatagramSocket socket;
+	private DatagramTransport transport;
 	private DtlsServerConfig config;
-	private SSLContext sslContext;
+	private Supplier<SSLContext> sslContextSupplier;
 	private AtomicBoolean running;
+	private SessionTable sessions;
+	private Executor taskExecutor;
+	private Queue<PeerSession> resumedSessions;
+	private Queue<CookiePrefilter.Hello> verifiedHellos;
+	private BufferPool packetPool;
+	private BufferPool appPool;
+	private ThreadFactory sessionThreadFactory;
+	private CookiePrefilter cookiePrefilter;
+	private TimerWheel timerWheel;
+	private ServerMetrics metrics;
+	// null if new sessions are not limited
+	private AdmissionControl admissionControl;
+	// engine created in advance for the next new session, null if there is none,
+	// and the context it was created from
+	private SSLEngine spareEngine;
+	private SSLContext spareContext;
 
 	public DtlsServer(DtlsServerConfig config, SSLContext sslContext) throws GeneralSecurityException, IOException {
-		InetSocketAddress address = new InetSocketAddress(config.getHostname(), config.getPort());
-		socket = new DatagramSocket(address);
-		socket.setSoTimeout(SOCKET_TIMEOUT);
-		socket.setReuseAddress(true);
+		this(config, sslContext, null);
+	}
+
+	/**
+	 * @param taskExecutor executor for delegated tasks, if null these are run on the server thread
+	 */
+	public DtlsServer(DtlsServerConfig config, SSLContext sslContext, Executor taskExecutor) throws GeneralSecurityException, IOException {
+		this(config, sslContext, taskExecutor, 
+				new ChannelTransport(new InetSocketAddress(config.getHostname(), config.getPort())));
+	}
+
+	/**
+	 * @param transport where datagrams are received from and sent to, instead of a socket bound as configured
+	 */
+	public DtlsServer(DtlsServerConfig config, SSLContext sslContext, Executor taskExecutor, DatagramTransport transport) throws GeneralSecurityException, IOException {
+		this.transport = transport;
 		this.config = config;		
-		this.sslContext = sslContext;
+		this.sslContextSupplier = () -> sslContext;
 		this.running = new AtomicBoolean(false);
+		this.sessions = new SessionTable(config.getMaxSessions(), config.getSessionMemoryBudget());
+		this.taskExecutor = taskExecutor;
+		this.resumedSessions = new ConcurrentLinkedQueue<>();
+		this.verifiedHellos = new ConcurrentLinkedQueue<>();
+		this.timerWheel = new TimerWheel(TICK_MILLIS, WHEEL_SLOTS);
+		this.metrics = new ServerMetrics();
+		if (AdmissionControl.isEnabled(config)) {
+			this.admissionControl = new AdmissionControl(config);
+		}
+
+		// buffers are sized for the largest record an engine may produce or consume,
+		// the engine itself is kept for the first session
+		spareContext = sslContext;
+		spareEngine = createSSLEngine(spareContext, false, config);
+		spareEngine.beginHandshake();
+		SSLSession session = spareEngine.getSession();
+		this.packetPool = new BufferPool(session.getPacketBufferSize(), POOL_CAPACITY);
+		this.appPool = new BufferPool(session.getApplicationBufferSize(), POOL_CAPACITY);
+		
+		if (config.isCookiePrefilterEnabled()) {
+			this.cookiePrefilter = new CookiePrefilter(this);
+		}
+		if (config.getExecutionMode() == ExecutionMode.THREAD_PER_SESSION) {
+			this.sessionThreadFactory = newSessionThreadFactory();
+		}
+	}
+	
+	/*
+	 * Virtual threads are only available from Java 21 on, hence they are looked up reflectively.
+	 */
+	private static ThreadFactory newSessionThreadFactory() {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			return (ThreadFactory) Class.forName("java.lang.Thread$Builder").getMethod("factory").invoke(builder);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			Log.info("virtual threads are not supported, sessions run on platform threads");
+			return r -> {
+				Thread thread = new Thread(r);
+				thread.setDaemon(true);
+				return thread;
+			};
+		}
 	}
 	
 	/*
 	 * A mock DTLS echo server which uses SSLEngine.
+	 * Received datagrams are handed to the session of the peer they came from. 
 	 */
 	public void run() {
 		try {
-			// create SSLEngine
-			SSLEngine engine = createSSLEngine(sslContext, false, config);
 			running.set(true);
-			ByteBuffer appData = null;
-			doFullHandshake(engine, socket);
-			switch (config.getOperation()) {
-			case BASIC:
-				// basic mode, nothing more needs to be done
-				break;
-			case ONE_ECHO:
-				if (!isInterrupted() && !isEngineClosed(engine)) {
-					if (engine.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING) {
-						appData = receiveAppData(engine, socket);
-		
-						if (appData != null) {
-							info("Server received application data");
-		
-							// write server application data
-							sendAppData(engine, socket, appData.duplicate(), peerAddr, "Server");
-						}
-					}
+			while (!isInterrupted()) {
+				// sessions' timeouts are checked at every tick while there are any
+				long waitMillis = timerWheel.getWaitMillis();
+				if (waitMillis == 0) {
+					Log.info("waiting for packets");
 				}
-				break;
-			case FULL:
-				while (!isInterrupted() && !isEngineClosed(engine)) {
-					if (engine.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING) {
-						doHandshakeStepCatchExceptions(engine, socket);
-					} else {
-						appData = receiveAppData(engine, socket);
-
-						if (appData != null) {
-							info("Server received application data");
-
-							// write server application data
-							sendAppData(engine, socket, appData.duplicate(), peerAddr, "Server");
-						}
-					}
-				}
-			case FULL_SR:
-				// read server application data
-				while (!isInterrupted()) {
-					// ok, the engine is closed, if resumption was enabled we create a new engine,
-					// otherwise we exit.
-					if (isEngineClosed(engine)) {
-						if (config.isResumptionEnabled()) {
-							engine = createSSLEngine(sslContext, false, config);
-							doFullHandshake(engine, socket);
-						} else
-							break;
-					} else {
-						if (engine.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING) {
-							doHandshakeStepCatchExceptions(engine, socket);
-						} else {
-							appData = receiveAppData(engine, socket);
-
-							if (appData != null) {
-								info("Server received application data");
-
-								// write server application data
-								sendAppData(engine, socket, appData.duplicate(), peerAddr, "Server");
-							}
-						}
-					}
-
-				}
-				break;
+				transport.await(waitMillis);
+				timerWheel.advance();
+				resumeSessions();
+				admitVerifiedPeers();
+				receivePackets();
 			}
 		} catch (Exception E) {
-			severe(E.getMessage());
-			E.printStackTrace(System.err);
+			if (!isInterrupted()) {
+				Log.severe(E.getMessage());
+				Log.stackTrace(E);
+			}
 		} finally {
 			if (isInterrupted()) {
-				info("Server thread has been interrupted");
+				Log.info("Server thread has been interrupted");
+			}
+			for (PeerSession session : sessions.sessions()) {
+				session.interruptThread();
+			}
+			try {
+				transport.close();
+			} catch (IOException e) {
+				Log.stackTrace(e);
 			}
-			socket.close();
-			socket.disconnect();
 			running.set(false);
 		}
 	}
 	
-	public boolean isRunning() {
-		return running.get();
-	}
-	
-	private static boolean isEngineClosed(SSLEngine engine) {
-		return (engine.isOutboundDone() && engine.isInboundDone());
-	}
-
-	/*
-	 * basic SSL Engine
-	 */
-	private SSLEngine createSSLEngine(SSLContext context, boolean isClient, DtlsServerConfig config) throws Exception {
-		SSLEngine engine = context.createSSLEngine();
-		engine.setUseClientMode(isClient);
-
-		if (!isClient) {
-			switch (config.getAuth()) {
-			case WANTED:
-				engine.setWantClientAuth(true);
-				break;
-			case NEEDED:
-				engine.setNeedClientAuth(true);
-				break;
-			default:
-				break;
+	// receives until the channel has no more datagrams queued
+	private void receivePackets() throws IOException {
+		while (!isInterrupted()) {
+			ByteBuffer buf = packetPool.lease();
+			InetSocketAddress peerAddr = (InetSocketAddress) transport.receive(buf);
+			if (peerAddr == null) {
+				packetPool.release(buf);
+				return;
 			}
+			buf.flip();
+			metrics.bytesIn.add(buf.remaining());
+			Log.info("received a packet of length {} from {}", buf.remaining(), peerAddr);
+			dispatch(peerAddr, buf, false);
 		}
-		
-		SSLParameters params = engine.getSSLParameters();
-		params.setEnableRetransmissions(config.isEnableRetransmission());
-		engine.setSSLParameters(params);
-
-		return engine;
-	}
-	
-	public Integer getPort() {
-		return this.socket.getLocalPort();
 	}
 
-	public void interrupt() {
-		this.socket.close();
-		super.interrupt();
+	// hands the datagram to the session of its peer, which may have to be created first
+	private void dispatch(InetSocketAddress peerAddr, ByteBuffer packet, boolean verified) {
+		PeerSession session = getSession(peerAddr, packet, verified);
+		if (session == null) {
+			packetPool.release(packet);
+		} else if (sessionThreadFactory != null) {
+			session.deliver(packet);
+		} else {
+			session.handle(packet);
+		}
 	}
-	
-	/*
-	 * Executes a full handshake, may or may not succeed.
-	 * 
-	 * The code is messy, what is important is that we do everything the SSLEngine
-	 * tells us. There are essentially 4 commands an SSLEngine can issue (associated
-	 * with the HandshakeStatus): 1. unwrap - meaning the engine is expecting to
-	 * receive network data. This data should be received and inputed to the engine.
-	 * 2. wrap - meaning the engine has network data ready. This data should be
-	 * gathered from the engine and sent. 3. execute task - meaning the engine
-	 * requests execution of some tasks. We should just execute them. 4. finished
-	 * handshaking - the engine is done with the current handshake. That might mean
-	 * that the handshake was completed successfully. Either that or invalid
-	 * messages rendered the engine unable to continue with the handshake.
-	 * 
-	 * In the latter case, we expect the engine to be in a closed state, hence we
-	 * instantiate a new engine. If resumption is enabled, we use the same context
-	 * 
-	 * Wrap and unwrap operations return results which also should be considered.
-	 * 
-	 */
-	private void doFullHandshake(SSLEngine engine, DatagramSocket socket) throws Exception {
 
-		boolean isDone = false;
-		engine.beginHandshake();
-		while (!isDone && !isEngineClosed(engine) && !isInterrupted()) {
-			isDone = doHandshakeStepCatchExceptions(engine, socket);
+	// creates sessions for the peers whose ClientHellos the prefilter has verified
+	private void admitVerifiedPeers() {
+		CookiePrefilter.Hello hello;
+		while ((hello = verifiedHellos.poll()) != null) {
+			dispatch(hello.peerAddr, hello.datagram, true);
 		}
+	}
 
-		if (isDone) {
-			SSLEngineResult.HandshakeStatus hs = engine.getHandshakeStatus();
-			info("Handshake finished, status is " + hs);
-
-			if (engine.getHandshakeSession() != null) {
-				throw new Exception("Handshake finished, but handshake session is not null");
-			}
-
-			SSLSession session = engine.getSession();
-			if (session == null) {
-				throw new Exception("Handshake finished, but session is null");
-			}
-			info("Negotiated protocol is " + session.getProtocol());
-			info("Negotiated cipher suite is " + session.getCipherSuite());
-			
-			if (LOG_LEVEL>0) {
-				try {
-					info("Verified peer certificates are " + Arrays.asList(engine.getSession().getPeerCertificates()));
-				} catch(SSLPeerUnverifiedException exception) {
-					info("SSL peer unverified");
-				}
-			}
-
-
-			// handshake status should be NOT_HANDSHAKING
-			//
-			// according to the spec,
-			// SSLEngine.getHandshakeStatus() can't return FINISHED
-			if (hs != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
-				throw new Exception("Unexpected handshake status " + hs);
-			}
-		}
+	/*
+	 * Has the server thread create a session for the peer of a ClientHello whose
+	 * cookie the prefilter has verified, may be called from any thread.
+	 */
+	void helloVerified(CookiePrefilter.Hello hello) {
+		verifiedHellos.add(hello);
+		transport.wakeup();
 	}
 
-	private boolean doHandshakeStepCatchExceptions(SSLEngine engine, DatagramSocket socket) {
-		try {
-			return doHandshakeStep(engine, socket);
-		} catch (Exception exc) {
-			severe("Exception while executing handshake step");
-			exc.printStackTrace();
-			severe("Continuing to flush causative problem");
-			return false;
+	// continues sessions whose delegated tasks have finished
+	private void resumeSessions() {
+		PeerSession session;
+		while ((session = resumedSessions.poll()) != null) {
+			session.tasksFinished();
 		}
 	}
 
-	// returns true if the handshake operation is completed/engine is closed, and
-	// false otherwise
-	private boolean doHandshakeStep(SSLEngine engine, DatagramSocket socket) throws Exception {
-		SSLEngineResult.HandshakeStatus hs = engine.getHandshakeStatus();
-		info("handshake status: " + hs);
-		List<DatagramPacket> packets;
-		switch (hs) {
-		// SSLEngine is expecting network data from the outside
-		case NEED_UNWRAP:
-		case NEED_UNWRAP_AGAIN:
-			info("expecting DTLS records");
-			ByteBuffer iNet;
-			ByteBuffer iApp;
-			if (hs == SSLEngineResult.HandshakeStatus.NEED_UNWRAP) {
-				byte[] buf = new byte[BUFFER_SIZE];
-				DatagramPacket packet = new DatagramPacket(buf, buf.length);
-				try {
-					info("waiting for a packet");
-					receivePacket(packet, socket);
-					info("received a packet of length = " + packet.getLength());
-				} catch (SocketTimeoutException ste) {
-					info("socket timed out");
-					return false;
-				}
-
-				iNet = ByteBuffer.wrap(buf, 0, packet.getLength());
-				iApp = ByteBuffer.allocate(BUFFER_SIZE);
-			} else {
-				iNet = ByteBuffer.allocate(0);
-				iApp = ByteBuffer.allocate(BUFFER_SIZE);
-			}
-			
-			do {
-				SSLEngineResult r = engine.unwrap(iNet, iApp);
-				SSLEngineResult.Status rs = r.getStatus();
-				logResult("unwrap", r);
-				switch (rs) {
-				case OK:
-					continue;
-				case BUFFER_OVERFLOW:
-				case BUFFER_UNDERFLOW:
-					throw new Exception("Unexpected buffer error: " + rs);
-				case CLOSED:
-	//				engine.closeInbound();
-					return true;
-				default:
-					throw new Exception("This branch should not be reachable");
-				}
-			} while(iNet.hasRemaining());
-			break;
-
-		// SSLEngine wants to send network data to the outside world
-		case NEED_WRAP:
-			info("preparing to send DTLS records");
-			packets = new ArrayList<>();
-			produceHandshakePackets(engine, peerAddr, packets);
-
-			for (DatagramPacket p : packets) {
-				socket.send(p);
-			}
-			break;
+	/*
+	 * Has the server thread resume the session, may be called from any thread.
+	 */
+	void resume(PeerSession session) {
+		resumedSessions.add(session);
+		transport.wakeup();
+	}
 
-		// SSLEngine wants some tasks to be executed.
-		case NEED_TASK:
-			runDelegatedTasks(engine);
-			break;
+	BufferPool getPacketPool() {
+		return packetPool;
+	}
 
-		// SSLEngine has finished handshaking
-		case NOT_HANDSHAKING:
-			info("finished handshaking");
-			return true;
+	BufferPool getAppPool() {
+		return appPool;
+	}
 
-		case FINISHED:
-			throw new Exception("Unexpected status, SSLEngine.getHandshakeStatus() " + "shouldn't return FINISHED");
-		}
+	Executor getTaskExecutor() {
+		return taskExecutor;
+	}
 
-		return false;
+	/*
+	 * The wheel's timeouts expire on the server thread.
+	 */
+	TimerWheel getTimerWheel() {
+		return timerWheel;
 	}
-	
-	// deliver application data
-	private void sendAppData(SSLEngine engine, DatagramSocket socket, ByteBuffer appData, SocketAddress peerAddr,
-			String side) throws Exception {
-
-		List<DatagramPacket> packets = produceApplicationPackets(engine, appData, peerAddr);
-		appData.flip();
-		info("sending " + packets.size() + " packets");
-		for (DatagramPacket p : packets) {
-			socket.send(p);
-		}
+
+	/*
+	 * Closes the session and forgets about it, so the next datagram from its peer
+	 * starts a new one. Called on the server thread.
+	 */
+	void closeSession(PeerSession session, String reason) {
+		InetSocketAddress peerAddr = session.getPeerAddress();
+		sessions.remove(session);
+		session.closeOnSession();
+		Log.info("closed session for {} ({}), {} sessions in total", peerAddr, reason, sessions.size());
 	}
 
-	private ByteBuffer receiveAppData(SSLEngine engine, DatagramSocket socket) throws Exception {
-		while (!isInterrupted() && !engine.isInboundDone()) {
-			byte[] buf = new byte[BUFFER_SIZE];
-			DatagramPacket packet = new DatagramPacket(buf, buf.length);
-			info("waiting for a packet");
+	/*
+	 * Returns the session of the peer, creating it if the peer is new and admitted.
+	 * With the prefilter, a new peer's datagram is only passed on to be verified,
+	 * a session is created once it comes back verified.
+	 */
+	private PeerSession getSession(InetSocketAddress peerAddr, ByteBuffer packet, boolean verified) {
+		PeerSession session = sessions.get(peerAddr);
+		if (session == null) {
+			DtlsEvents.SessionCreated event = new DtlsEvents.SessionCreated();
+			event.begin();
 			try {
-				receivePacket(packet, socket);
+				// only a ClientHello, with a valid cookie if there is a prefilter, may use up a token
+				SSLEngine engine = null;
+				if (cookiePrefilter != null) {
+					if (!verified) {
+						cookiePrefilter.verify(packet, peerAddr);
+						return null;
+					}
+					engine = cookiePrefilter.createEngine(packet);
+					if (engine == null) {
+						Log.info("no engine for the verified ClientHello from {}, dropping packet", peerAddr);
+						return null;
+					}
+				} else if (admissionControl != null && !CookiePrefilter.isClientHello(packet)) {
+					Log.info("no ClientHello from {}, dropping packet", peerAddr);
+					return null;
+				}
+				if (admissionControl != null && !admissionControl.admit(peerAddr)) {
+					Log.info("not admitting {}, dropping packet", peerAddr);
+					metrics.handshakesRejected.increment();
+					return null;
+				}
+				if (engine != null) {
+					session = new PeerSession(this, peerAddr, config, engine);
+				} else {
+					if (spareEngine != null && spareContext != sslContextSupplier.get()) {
+						// the context has changed since, new sessions get the new one
+						spareEngine = null;
+					}
+					session = new PeerSession(this, peerAddr, config, spareEngine);
+					spareEngine = null;
+				}
 			} catch (Exception e) {
-				severe(e.getMessage());
+				Log.severe("Could not create a session for {}", peerAddr);
+				Log.stackTrace(e);
 				return null;
 			}
-
-			info("received a packet of length " + packet.getLength());
-			ByteBuffer netBuffer = ByteBuffer.wrap(buf, 0, packet.getLength());
-			ByteBuffer recBuffer = ByteBuffer.allocate(BUFFER_SIZE);
-			SSLEngineResult rs = engine.unwrap(netBuffer, recBuffer);
-			logResult("unwrap", rs);
-			recBuffer.flip();
-			if (recBuffer.remaining() != 0) {
-				return recBuffer;
+			List<PeerSession> evictedSessions = sessions.add(session);
+			for (PeerSession evicted : evictedSessions) {
+				Log.info("evicting session for {} to make room", evicted.getPeerAddress());
+				(evicted.isEstablished() ? metrics.evictedEstablished : metrics.evictedHalfOpen).increment();
+				evicted.evict();
 			}
-			if (rs.getStatus() == Status.CLOSED) {
-//				engine.closeInbound();
+			if (sessionThreadFactory != null) {
+				session.startThread(sessionThreadFactory);
 			}
-			if (engine.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING) {
-				return null;
+			Log.info("new session for {}, {} sessions in total", peerAddr, sessions.size());
+			if (event.shouldCommit()) {
+				event.peer = peerAddr.toString();
+				event.sessions = sessions.size();
+				event.evicted = evictedSessions.size();
+				event.commit();
 			}
 		}
-
-		return null;
+		return session;
 	}
-
-	// receive packet and update peer address while you are at it
-	private void receivePacket(DatagramPacket packet, DatagramSocket socket) throws IOException {
-		socket.receive(packet);
-		InetSocketAddress peerAddress = (InetSocketAddress) packet.getSocketAddress();
-		if (peerAddr == null || !peerAddress.equals(peerAddr)) {
-			peerAddr = (InetSocketAddress) packet.getSocketAddress();
-			info("setting peer address to " + peerAddr);
-		}
+	
+	ServerMetrics getMetrics() {
+		return metrics;
 	}
 
-	// produce handshake packets
-	private void produceHandshakePackets(SSLEngine engine, SocketAddress socketAddr, List<DatagramPacket> packets)
-			throws Exception {
-
-		while (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
-
-			ByteBuffer oNet = ByteBuffer.allocate(32768);
-			ByteBuffer oApp = ByteBuffer.allocate(0);
-			SSLEngineResult r = engine.wrap(oApp, oNet);
-			oNet.flip();
-
-			logResult("wrap", r);
-			Status rs = r.getStatus();
-
-			switch (rs) {
-			case BUFFER_UNDERFLOW:
-			case BUFFER_OVERFLOW:
-				throw new Exception("Unexpected buffer error: " + rs);
-			case CLOSED:
-//				engine.closeOutbound();
-			case OK:
-				if (oNet.hasRemaining()) {
-					byte[] ba = new byte[oNet.remaining()];
-					oNet.get(ba);
-					DatagramPacket packet = createHandshakePacket(ba, socketAddr);
-					packets.add(packet);
-				}
-				break;
-			default:
-				throw new Exception("This branch should not be reachable " + rs);
-			}
+	/*
+	 * Has the server limit new sessions together with other servers, must be
+	 * called before the server is started.
+	 */
+	void setAdmissionControl(AdmissionControl admissionControl) {
+		this.admissionControl = admissionControl;
+	}
 
-		}
+	/*
+	 * Has the server record into the given metrics, e.g. ones shared with other
+	 * servers, must be called before the server is started.
+	 */
+	void setMetrics(ServerMetrics metrics) {
+		this.metrics = metrics;
+	}
 
-		info("produced " + packets.size() + " packets");
+	public boolean isRunning() {
+		return running.get();
+	}
+	
+	static boolean isEngineClosed(SSLEngine engine) {
+		return (engine.isOutboundDone() && engine.isInboundDone());
 	}
 
-	// produce application packets
-	private List<DatagramPacket> produceApplicationPackets(SSLEngine engine, ByteBuffer source,
-			SocketAddress socketAddr) throws Exception {
-
-		List<DatagramPacket> packets = new ArrayList<>();
-		ByteBuffer appNet = ByteBuffer.allocate(32768);
-		SSLEngineResult r = engine.wrap(source, appNet);
-		appNet.flip();
-		logResult("wrap", r);
-		SSLEngineResult.Status rs = r.getStatus();
-		switch (rs) {
-		case BUFFER_OVERFLOW:
-		case BUFFER_UNDERFLOW:
-			throw new Exception("Unexpected buffer error: " + rs);
-		case OK:
-			if (appNet.hasRemaining()) {
-				byte[] ba = new byte[appNet.remaining()];
-				appNet.get(ba);
-				DatagramPacket packet = new DatagramPacket(ba, ba.length, socketAddr);
-				packets.add(packet);
-			}
-			break;
-		case CLOSED:
-			throw new Exception("SSLEngine has closed unexpectedly");
-		default:
-			throw new Exception("This branch should not be reachable " + rs);
-		}
+	SSLEngine createSSLEngine() throws GeneralSecurityException {
+		return createSSLEngine(sslContextSupplier.get(), false, config);
+	}
 
-		return packets;
+	SSLEngine createSSLEngine(SSLContext context) throws GeneralSecurityException {
+		return createSSLEngine(context, false, config);
 	}
 
-	private void logResult(String operation, SSLEngineResult result) {
-		info(operation + " result: " + result);
+	/*
+	 * The context new sessions' engines are created from.
+	 */
+	SSLContext getSSLContext() {
+		return sslContextSupplier.get();
 	}
 
-	private DatagramPacket createHandshakePacket(byte[] ba, SocketAddress socketAddr) {
-		return new DatagramPacket(ba, ba.length, socketAddr);
+	/*
+	 * Has the server create engines from whatever context the supplier gives at
+	 * the time, e.g. a {@link KeyStoreWatcher}, rather than from the one it was
+	 * created with. Must be called before the server is started.
+	 */
+	void setSSLContextSupplier(Supplier<SSLContext> sslContextSupplier) {
+		this.sslContextSupplier = sslContextSupplier;
 	}
 
-	// run delegated tasks
-	private void runDelegatedTasks(SSLEngine engine) throws Exception {
-		Runnable runnable;
-		while ((runnable = engine.getDelegatedTask()) != null) {
-			runnable.run();
-		}
+	/*
+	 * basic SSL Engine
+	 */
+	private SSLEngine createSSLEngine(SSLContext context, boolean isClient, DtlsServerConfig config) throws GeneralSecurityException {
+		SSLEngine engine = context.createSSLEngine();
+		engine.setUseClientMode(isClient);
 
-		SSLEngineResult.HandshakeStatus hs = engine.getHandshakeStatus();
-		if (hs == SSLEngineResult.HandshakeStatus.NEED_TASK) {
-			throw new Exception("handshake shouldn't need additional tasks");
+		if (!isClient) {
+			switch (config.getAuth()) {
+			case WANTED:
+				engine.setWantClientAuth(true);
+				break;
+			case NEEDED:
+				engine.setNeedClientAuth(true);
+				break;
+			default:
+				break;
+			}
 		}
-	}
+		
+		SSLParameters params = engine.getSSLParameters();
+		params.setEnableRetransmissions(config.isEnableRetransmission());
+		engine.setSSLParameters(params);
 
-	static void severe(String message) {
-		log(System.err, message);
+		return engine;
+	}
+	
+	public Integer getPort() {
+		return transport.getLocalPort();
 	}
 
-	static void info(String message) {
-		log(System.out, message);
+	/*
+	 * Records the datagrams the server receives and sends from now on, must be
+	 * called before the server is started.
+	 */
+	void setPacketCapture(PacketCapture capture) {
+		transport = new CapturingTransport(transport, capture);
 	}
 
-	static void log(PrintStream ps, String message) {
-		if (LOG_LEVEL > 0) {
-			if (LOG_LEVEL > 1) {
-				String methodName = Arrays.stream(Thread.currentThread().getStackTrace()).skip(3)
-						.filter(e -> !e.getMethodName().startsWith("log")).findFirst().get().getMethodName();
-				ps.println(methodName + ": " + message);
-			} else {
-				ps.println(message);
-			}
+	public void interrupt() {
+		super.interrupt();
+		try {
+			transport.close();
+		} catch (IOException e) {
+			Log.stackTrace(e);
+		}
+	}
+	
+	void send(ByteBuffer packet, SocketAddress peerAddr) throws IOException {
+		int length = packet.remaining();
+		if (transport.send(packet, peerAddr) == 0) {
+			// the socket buffer is full, as with any datagram the peer will have to do without
+			Log.severe("dropped outgoing packet of length {} to {}", length, peerAddr);
+		} else {
+			metrics.bytesOut.add(length);
 		}
 	}
 }
@@ -8,6 +8,20 @@ public class DtlsServerConfig {
 	private boolean enableResumption;
 	private Operation operation;
 	private boolean enableRetransmission;
+	private int taskThreads;
+	private ExecutionMode executionMode;
+	private boolean enableCookiePrefilter;
+	private long retransmissionTimeout;
+	private long handshakeTimeout;
+	private long idleTimeout;
+	private int maxSessions;
+	private long sessionMemoryBudget;
+	private int shards;
+	private int sourceHandshakeRate;
+	private int handshakeRate;
+	private int handshakeBurst;
+	private int sourcePrefixLength;
+	private double cpuLoadLimit;
 
 	// some default options
 	public DtlsServerConfig() {
@@ -17,6 +31,20 @@ public class DtlsServerConfig {
 		this.enableResumption = false;
 		this.operation = Operation.BASIC;
 		this.enableRetransmission = false;
+		this.taskThreads = 0;
+		this.executionMode = ExecutionMode.EVENT_LOOP;
+		this.enableCookiePrefilter = false;
+		this.retransmissionTimeout = 1000;
+		this.handshakeTimeout = 0;
+		this.idleTimeout = 0;
+		this.maxSessions = 0;
+		this.sessionMemoryBudget = 0;
+		this.shards = 1;
+		this.sourceHandshakeRate = 0;
+		this.handshakeRate = 0;
+		this.handshakeBurst = 10;
+		this.sourcePrefixLength = 32;
+		this.cpuLoadLimit = 0;
 	}
 
 	public String getHostname() {
@@ -59,6 +87,165 @@ public class DtlsServerConfig {
 		this.enableRetransmission = enableRetransmission;
 	}
 
+	/**
+	 * Number of threads running the SSLEngines' delegated tasks, 0 if they run on the server thread.
+	 */
+	public int getTaskThreads() {
+		return taskThreads;
+	}
+
+	public void setTaskThreads(int taskThreads) {
+		this.taskThreads = taskThreads;
+	}
+
+	public ExecutionMode getExecutionMode() {
+		return executionMode;
+	}
+
+	public void setExecutionMode(ExecutionMode executionMode) {
+		this.executionMode = executionMode;
+	}
+
+	/**
+	 * Whether new peers have to complete a cookie exchange before a session is kept for them, 
+	 * see {@link CookiePrefilter}.
+	 */
+	public boolean isCookiePrefilterEnabled() {
+		return enableCookiePrefilter;
+	}
+
+	public void setEnableCookiePrefilter(boolean enableCookiePrefilter) {
+		this.enableCookiePrefilter = enableCookiePrefilter;
+	}
+
+	/**
+	 * Milliseconds after which a flight is first retransmitted if the peer has
+	 * not answered, doubled with every retransmission. Only used if
+	 * retransmission is enabled.
+	 */
+	public long getRetransmissionTimeout() {
+		return retransmissionTimeout;
+	}
+
+	public void setRetransmissionTimeout(long retransmissionTimeout) {
+		this.retransmissionTimeout = retransmissionTimeout;
+	}
+
+	/**
+	 * Milliseconds a handshake may take before its session is closed, 0 for no limit.
+	 */
+	public long getHandshakeTimeout() {
+		return handshakeTimeout;
+	}
+
+	public void setHandshakeTimeout(long handshakeTimeout) {
+		this.handshakeTimeout = handshakeTimeout;
+	}
+
+	/**
+	 * Milliseconds without datagrams from the peer after which its session is closed, 0 for no limit.
+	 */
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	public void setIdleTimeout(long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Most sessions the server keeps, 0 for no limit, see {@link SessionTable}.
+	 */
+	public int getMaxSessions() {
+		return maxSessions;
+	}
+
+	public void setMaxSessions(int maxSessions) {
+		this.maxSessions = maxSessions;
+	}
+
+	/**
+	 * Bytes the server's sessions may take up, estimated, 0 for no limit.
+	 */
+	public long getSessionMemoryBudget() {
+		return sessionMemoryBudget;
+	}
+
+	public void setSessionMemoryBudget(long sessionMemoryBudget) {
+		this.sessionMemoryBudget = sessionMemoryBudget;
+	}
+
+	/**
+	 * Number of sockets the server listens on, all bound to the same port, each
+	 * with a server thread of its own, see {@link ShardedServer}.
+	 */
+	public int getShards() {
+		return shards;
+	}
+
+	public void setShards(int shards) {
+		this.shards = shards;
+	}
+
+	/**
+	 * New sessions per second a source may start, 0 for no limit, see
+	 * {@link AdmissionControl}.
+	 */
+	public int getSourceHandshakeRate() {
+		return sourceHandshakeRate;
+	}
+
+	public void setSourceHandshakeRate(int sourceHandshakeRate) {
+		this.sourceHandshakeRate = sourceHandshakeRate;
+	}
+
+	/**
+	 * New sessions per second all sources together may start, 0 for no limit.
+	 */
+	public int getHandshakeRate() {
+		return handshakeRate;
+	}
+
+	public void setHandshakeRate(int handshakeRate) {
+		this.handshakeRate = handshakeRate;
+	}
+
+	/**
+	 * New sessions which may be started at once, by a source or all sources,
+	 * within the rates.
+	 */
+	public int getHandshakeBurst() {
+		return handshakeBurst;
+	}
+
+	public void setHandshakeBurst(int handshakeBurst) {
+		this.handshakeBurst = handshakeBurst;
+	}
+
+	/**
+	 * Length of the IPv4 prefix sources are told apart by, IPv6 sources are told
+	 * apart by their /64.
+	 */
+	public int getSourcePrefixLength() {
+		return sourcePrefixLength;
+	}
+
+	public void setSourcePrefixLength(int sourcePrefixLength) {
+		this.sourcePrefixLength = sourcePrefixLength;
+	}
+
+	/**
+	 * Share of all CPUs, between 0 and 1, above which the process admits no new
+	 * sessions, 0 for no limit.
+	 */
+	public double getCpuLoadLimit() {
+		return cpuLoadLimit;
+	}
+
+	public void setCpuLoadLimit(double cpuLoadLimit) {
+		this.cpuLoadLimit = cpuLoadLimit;
+	}
+
 	public Operation getOperation() {
 		return operation;
 	}
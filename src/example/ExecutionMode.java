@@ -0,0 +1,18 @@
+package example;
+
+/**
+ * How the server runs its peer sessions.
+ */
+public enum ExecutionMode {
+	/**
+	 * All sessions are driven by the server thread, as datagrams arrive.
+	 */
+	EVENT_LOOP,
+	
+	/**
+	 * Every session runs on its own thread, which takes the datagrams of its peer 
+	 * as they arrive and blocks while there are none. Sessions run on virtual threads 
+	 * if the JVM supports them, otherwise on platform threads.
+	 */
+	THREAD_PER_SESSION;
+}
@@ -0,0 +1,52 @@
+package example;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * Runs handshakes and echoes in-process before the server starts, so that
+ * the JIT has compiled the handshake and record code by the time the first
+ * peer arrives.
+ *
+ * A client engine handshakes with a server session over memory buffers, the
+ * same way as in the benchmarks, using the server's SSLContext and client
+ * authentication setting.
+ */
+class JitWarmup {
+	private static final int PAYLOAD_SIZE = 256;
+
+	private JitWarmup() {
+	}
+
+	static void run(DtlsServerConfig serverConfig, SSLContext sslContext, int handshakes) throws Exception {
+		DtlsServerConfig config = new DtlsServerConfig();
+		config.setAuth(serverConfig.getAuth());
+		config.setEnableRetransmission(serverConfig.isEnableRetransmission());
+		// sessions have to echo whatever the server's mode of operation
+		config.setOperation(Operation.FULL);
+
+		long start = System.nanoTime();
+		LoopbackServer server = new LoopbackServer(config, sslContext);
+		ByteBuffer payload = ByteBuffer.allocateDirect(PAYLOAD_SIZE);
+		for (int i = 0; i < handshakes; i++) {
+			server.connect(sslContext);
+			server.handshake();
+			for (int j = 0; j < 10; j++) {
+				server.echo(payload.clear());
+			}
+		}
+		Log.info("warmed up with {} handshakes in {} ms", handshakes,
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+	}
+
+	/*
+	 * Runs the given number of handshakes (default 20) and exits, used as the 
+	 * training run when building a class data sharing archive.
+	 */
+	public static void main(String args[]) throws Exception {
+		int handshakes = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+		run(new DtlsServerConfig(), Main.getDTLSContext(), handshakes);
+	}
+}
@@ -0,0 +1,117 @@
+package example;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * Supplies the current SSLContext, building a new one whenever the key or
+ * trust store files change.
+ *
+ * A thread of its own watches the files' directories and, once a file has
+ * been written and left alone for a moment, loads the stores again. Servers
+ * given the watcher as their SSLContext supplier create engines for new
+ * sessions from the new context right away, while sessions already running
+ * keep their engines, and with them the old context, until they end. If the
+ * stores cannot be loaded, e.g. as they are only half written, the current
+ * context stays.
+ *
+ * Each SSLContext has a session cache and a cookie secret of its own, so peers
+ * can neither resume sessions of the old context on the new one nor use
+ * cookies the old context gave them, they just take a round trip longer.
+ */
+class KeyStoreWatcher implements Supplier<SSLContext> {
+	// how long a file has to be left alone before it is loaded
+	private static final long SETTLE_MILLIS = 500;
+
+	private final AtomicReference<SSLContext> current;
+	private final Callable<SSLContext> loader;
+	private final Set<Path> files = new HashSet<>();
+	private final WatchService watchService;
+
+	/*
+	 * The loader builds a new SSLContext from the files.
+	 */
+	KeyStoreWatcher(SSLContext sslContext, Callable<SSLContext> loader, Path... files) throws IOException {
+		this.current = new AtomicReference<>(sslContext);
+		this.loader = loader;
+		this.watchService = FileSystems.getDefault().newWatchService();
+		for (Path file : files) {
+			Path path = file.toAbsolutePath().normalize();
+			if (this.files.add(path)) {
+				// a file replaced by renaming another one over it is created rather than modified
+				path.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+						StandardWatchEventKinds.ENTRY_MODIFY);
+			}
+		}
+		Thread thread = new Thread(this::run, "keystore-watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@Override
+	public SSLContext get() {
+		return current.get();
+	}
+
+	void close() throws IOException {
+		watchService.close();
+	}
+
+	private void run() {
+		try {
+			while (true) {
+				if (!isChanged(watchService.take())) {
+					continue;
+				}
+				// keytool and editors may write a file in several goes
+				WatchKey key;
+				do {
+					Thread.sleep(SETTLE_MILLIS);
+					key = watchService.poll();
+					if (key != null) {
+						key.pollEvents();
+						key.reset();
+					}
+				} while (key != null);
+				reload();
+			}
+		} catch (InterruptedException | ClosedWatchServiceException e) {
+			Log.info("stopped watching the keystore");
+		}
+	}
+
+	private boolean isChanged(WatchKey key) {
+		boolean changed = false;
+		Path dir = (Path) key.watchable();
+		for (WatchEvent<?> event : key.pollEvents()) {
+			if (event.kind() == StandardWatchEventKinds.OVERFLOW || files.contains(dir.resolve((Path) event.context()))) {
+				changed = true;
+			}
+		}
+		key.reset();
+		return changed;
+	}
+
+	private void reload() {
+		try {
+			current.set(loader.call());
+			Log.info("keystore changed, new sessions use a new SSLContext");
+		} catch (Exception e) {
+			Log.severe("could not load the changed keystore, keeping the current SSLContext");
+			Log.stackTrace(e);
+		}
+	}
+}
@@ -0,0 +1,98 @@
+package example;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A histogram of latencies in nanoseconds which any number of threads can
+ * record into without locking.
+ *
+ * Values are counted in log-linear buckets: each power of two is split into
+ * 32 buckets, so percentiles are accurate to within about 3%.
+ */
+class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(64 * SUB_BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+
+	void record(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		counts.incrementAndGet(bucket(nanos));
+		count.increment();
+		sum.add(nanos);
+	}
+
+	long getCount() {
+		return count.sum();
+	}
+
+	double getMean() {
+		long n = count.sum();
+		return n == 0 ? 0 : (double) sum.sum() / n;
+	}
+
+	/*
+	 * Returns the value below which the given percentile (e.g. 99.9) of the
+	 * recorded values falls, 0 if nothing was recorded.
+	 */
+	long getPercentile(double percentile) {
+		long total = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			total += counts.get(i);
+		}
+		long rank = (long) Math.ceil(total * percentile / 100);
+		long seen = 0;
+		for (int i = 0; i < counts.length(); i++) {
+			seen += counts.get(i);
+			if (seen >= rank && seen > 0) {
+				return highestValue(i);
+			}
+		}
+		return 0;
+	}
+
+	void reset() {
+		for (int i = 0; i < counts.length(); i++) {
+			counts.set(i, 0);
+		}
+		count.reset();
+		sum.reset();
+	}
+
+	/*
+	 * Summary of the percentiles in milliseconds.
+	 */
+	String summary() {
+		return String.format("n=%d mean=%.3fms p50=%.3fms p99=%.3fms p999=%.3fms", getCount(), toMillis(getMean()),
+				toMillis(getPercentile(50)), toMillis(getPercentile(99)), toMillis(getPercentile(99.9)));
+	}
+
+	private static double toMillis(double nanos) {
+		return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	// values below SUB_BUCKETS get a bucket each, larger ones share them by magnitude
+	private static int bucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> magnitude) & (SUB_BUCKETS - 1);
+		return (magnitude + 1) * SUB_BUCKETS + subBucket;
+	}
+
+	private static long highestValue(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int magnitude = bucket / SUB_BUCKETS - 1;
+		long subBucket = (bucket % SUB_BUCKETS) | SUB_BUCKETS;
+		return ((subBucket + 1) << magnitude) - 1;
+	}
+}
@@ -0,0 +1,299 @@
+package example;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLSession;
+
+/**
+ * A load generating DTLS client, used to see how a {@link DtlsServer} (e.g. in
+ * the FULL mode of operation) behaves with many peers.
+ *
+ * Every session runs on a thread of its own. A session handshakes, echoes data at
+ * the given rate, and, if a handshake rate is given, closes and handshakes again
+ * from a new port at that rate. At the end, throughput and latency percentiles
+ * of handshakes and echo round-trips are reported.
+ *
+ * Echoes are sent on a fixed schedule, and an echo's latency is taken from the
+ * time it was due rather than the time it was sent. A session falling behind,
+ * as it waits for a stalled server, thus shows the stall in the latencies of
+ * all the echoes it delayed. How late echoes were sent is reported as well.
+ */
+public class LoadGenerator {
+	// time a handshake message or echo is waited for before retransmitting/giving up
+	private static final int RECEIVE_TIMEOUT = 1000;
+	private static final long HANDSHAKE_TIMEOUT = TimeUnit.SECONDS.toNanos(10);
+
+	private final InetSocketAddress serverAddress;
+	private final SSLContext sslContext;
+	private final long handshakeInterval;
+	private final long echoInterval;
+	private final int payloadSize;
+
+	private final LatencyHistogram handshakeLatencies = new LatencyHistogram();
+	private final LatencyHistogram echoLatencies = new LatencyHistogram();
+	// how long after they were due echoes were sent
+	private final LatencyHistogram echoLag = new LatencyHistogram();
+	private final LongAdder failedHandshakes = new LongAdder();
+	private final LongAdder lostEchoes = new LongAdder();
+	// sessions which failed after their handshake, while echoing
+	private final LongAdder failedSessions = new LongAdder();
+
+	/**
+	 * @param handshakeRate handshakes per second per session, 0 for a single handshake
+	 * @param echoRate echoes per second per session, 0 for none
+	 */
+	public LoadGenerator(InetSocketAddress serverAddress, SSLContext sslContext, double handshakeRate,
+			double echoRate, int payloadSize) {
+		this.serverAddress = serverAddress;
+		this.sslContext = sslContext;
+		this.handshakeInterval = handshakeRate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / handshakeRate) : 0;
+		this.echoInterval = echoRate > 0 ? (long) (TimeUnit.SECONDS.toNanos(1) / echoRate) : 0;
+		this.payloadSize = payloadSize;
+	}
+
+	/**
+	 * Runs the sessions for the given time and prints the report.
+	 */
+	public void run(int sessions, long durationSeconds) throws InterruptedException {
+		long start = System.nanoTime();
+		long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+		List<Thread> threads = new ArrayList<>();
+		for (int i = 0; i < sessions; i++) {
+			Thread thread = new Thread(() -> runSession(end), "session-" + i);
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		report(sessions, System.nanoTime() - start);
+	}
+
+	private void report(int sessions, long elapsed) {
+		double seconds = (double) elapsed / TimeUnit.SECONDS.toNanos(1);
+		System.out.println("Sessions: " + sessions + ", elapsed: " + String.format("%.1fs", seconds));
+		System.out.println(String.format("Handshakes: %d completed (%.1f/s), %d failed", handshakeLatencies.getCount(),
+				handshakeLatencies.getCount() / seconds, failedHandshakes.sum()));
+		System.out.println("Handshake latency: " + handshakeLatencies.summary());
+		System.out.println(String.format("Echoes: %d completed (%.1f/s), %d lost, %d sessions failed",
+				echoLatencies.getCount(), echoLatencies.getCount() / seconds, lostEchoes.sum(), failedSessions.sum()));
+		System.out.println("Echo latency: " + echoLatencies.summary());
+		System.out.println("Echo behind schedule: " + echoLag.summary());
+	}
+
+	private void runSession(long end) {
+		while (System.nanoTime() < end) {
+			long handshakeStart = System.nanoTime();
+			boolean established = false;
+			try (Connection connection = new Connection()) {
+				if (!connection.handshake()) {
+					failedHandshakes.increment();
+					continue;
+				}
+				handshakeLatencies.record(System.nanoTime() - handshakeStart);
+				established = true;
+
+				long until = handshakeInterval > 0 ? Math.min(end, handshakeStart + handshakeInterval) : end;
+				long nextEcho = System.nanoTime();
+				while (System.nanoTime() < until) {
+					if (echoInterval > 0 && nextEcho < until) {
+						sleepUntil(nextEcho);
+						if (!connection.echo(nextEcho)) {
+							lostEchoes.increment();
+						}
+						nextEcho += echoInterval;
+					} else {
+						sleepUntil(until);
+					}
+				}
+			} catch (IOException e) {
+				if (established) {
+					failedSessions.increment();
+				} else {
+					failedHandshakes.increment();
+				}
+				Log.severe("Session failed: {}", e);
+			}
+		}
+	}
+
+	private static void sleepUntil(long deadline) {
+		long remaining;
+		while ((remaining = deadline - System.nanoTime()) > 0) {
+			LockSupport.parkNanos(remaining);
+		}
+	}
+
+	/*
+	 * A client engine talking to the server from a port of its own.
+	 */
+	private class Connection implements AutoCloseable {
+		private final DatagramSocket socket;
+		private final SSLEngine engine;
+		private final ByteBuffer netIn;
+		private final ByteBuffer netOut;
+		private final ByteBuffer appIn;
+		private final ByteBuffer appOut;
+
+		Connection() throws IOException {
+			socket = new DatagramSocket();
+			socket.connect(serverAddress);
+			socket.setSoTimeout(RECEIVE_TIMEOUT);
+			engine = sslContext.createSSLEngine();
+			engine.setUseClientMode(true);
+			SSLSession session = engine.getSession();
+			// sizes grow once a cipher suite is negotiated, leave some room
+			netIn = ByteBuffer.allocate(session.getPacketBufferSize() * 2);
+			netOut = ByteBuffer.allocate(session.getPacketBufferSize() * 2);
+			appIn = ByteBuffer.allocate(session.getApplicationBufferSize() * 2);
+			appOut = ByteBuffer.allocate(payloadSize);
+			while (appOut.hasRemaining()) {
+				appOut.put((byte) 'x');
+			}
+		}
+
+		// returns true if the handshake completed
+		boolean handshake() throws IOException {
+			long deadline = System.nanoTime() + HANDSHAKE_TIMEOUT;
+			engine.beginHandshake();
+			while (engine.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING) {
+				if (System.nanoTime() > deadline || isClosed()) {
+					return false;
+				}
+				switch (engine.getHandshakeStatus()) {
+				case NEED_WRAP:
+					wrapAndSend(appOut.clear().limit(0));
+					break;
+				case NEED_TASK:
+					Runnable runnable;
+					while ((runnable = engine.getDelegatedTask()) != null) {
+						runnable.run();
+					}
+					break;
+				case NEED_UNWRAP_AGAIN:
+					engine.unwrap(netIn.clear().flip(), appIn.clear());
+					break;
+				default:
+					if (receive()) {
+						unwrapAll();
+					} else {
+						// asks the engine for a retransmission of its last flight
+						wrapAndSend(appOut.clear().limit(0));
+					}
+					break;
+				}
+			}
+			return true;
+		}
+
+		// returns true if the echo, due at the given time, came back
+		boolean echo(long due) throws IOException {
+			echoLag.record(System.nanoTime() - due);
+			appOut.clear();
+			wrapAndSend(appOut);
+			while (receive()) {
+				unwrapAll();
+				if (appIn.position() > 0) {
+					echoLatencies.record(System.nanoTime() - due);
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private boolean isClosed() {
+			return engine.isInboundDone() && engine.isOutboundDone();
+		}
+
+		private void wrapAndSend(ByteBuffer appData) throws IOException {
+			netOut.clear();
+			SSLEngineResult r = engine.wrap(appData, netOut);
+			netOut.flip();
+			if (r.getStatus() == SSLEngineResult.Status.OK && netOut.hasRemaining()) {
+				socket.send(new DatagramPacket(netOut.array(), netOut.limit()));
+			}
+		}
+
+		// returns false if nothing was received in time, leaves the datagram in netIn
+		private boolean receive() throws IOException {
+			DatagramPacket packet = new DatagramPacket(netIn.array(), netIn.capacity());
+			try {
+				socket.receive(packet);
+			} catch (SocketTimeoutException e) {
+				return false;
+			}
+			netIn.clear().position(packet.getLength());
+			return true;
+		}
+
+		private void unwrapAll() throws IOException {
+			netIn.flip();
+			appIn.clear();
+			while (netIn.hasRemaining()) {
+				if (engine.unwrap(netIn, appIn).bytesConsumed() == 0) {
+					break;
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!engine.isOutboundDone()) {
+				engine.closeOutbound();
+				wrapAndSend(appOut.clear().limit(0));
+			}
+			socket.close();
+		}
+	}
+
+	/**
+	 * Runs a load against a DTLS server.
+	 *
+	 * Accepts the following arguments:
+	 * <ul>
+	 *  <li> the address of the server; </li>
+	 *  <li> number of concurrent sessions (optional, default 10); </li>
+	 *  <li> duration in seconds (optional, default 10); </li>
+	 *  <li> handshakes per second per session, 0 for a single handshake (optional, default 0); </li>
+	 *  <li> echoes per second per session (optional, default 10); </li>
+	 *  <li> echo payload size in bytes (optional, default 64). </li>
+	 * </ul>
+	 */
+	public static void main(String args[]) throws Exception {
+		if (args.length == 0) {
+			System.out.println(
+					"USAGE: java LoadGenerator ip:port [sessions [duration [handshake_rate [echo_rate [payload_size]]]]]");
+			return;
+		}
+
+		LinkedList<String> argList = new LinkedList<String>();
+		argList.addAll(Arrays.asList(args));
+		String[] ipPort = argList.removeFirst().split("\\:");
+		InetSocketAddress serverAddress = new InetSocketAddress(ipPort[0], Integer.valueOf(ipPort[1]));
+		int sessions = argList.isEmpty() ? 10 : Integer.valueOf(argList.removeFirst());
+		long duration = argList.isEmpty() ? 10 : Long.valueOf(argList.removeFirst());
+		double handshakeRate = argList.isEmpty() ? 0 : Double.valueOf(argList.removeFirst());
+		double echoRate = argList.isEmpty() ? 10 : Double.valueOf(argList.removeFirst());
+		int payloadSize = argList.isEmpty() ? 64 : Integer.valueOf(argList.removeFirst());
+
+		LoadGenerator generator = new LoadGenerator(serverAddress, Main.getDTLSContext(), handshakeRate, echoRate,
+				payloadSize);
+		generator.run(sessions, duration);
+	}
+}
@@ -0,0 +1,288 @@
+package example;
+
+import java.io.PrintStream;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Logging for the server, cheap enough to be left on.
+ *
+ * Messages are formats with {} placeholders, the arguments are only turned into
+ * text if the message is logged at all. Logged messages are put in a ring
+ * buffer of preallocated entries and written out by a background thread, so
+ * the threads logging them never wait on System.out. Only if the ring buffer is
+ * full does a thread wait for the writer to catch up.
+ *
+ * The level is given by the log.level system property: 0 no logging, 1 basic
+ * logging, 2 logging incl. method name. Stack traces are logged regardless of
+ * the level.
+ */
+class Log {
+	private static final int LEVEL = Integer.getInteger("log.level", 1);
+	private static final int CAPACITY = 1 << 12;
+	private static final int MAX_ARGS = 4;
+
+	private static final Entry[] entries = new Entry[CAPACITY];
+	private static final AtomicLong claimed = new AtomicLong();
+	// only accessed by the writer thread
+	private static long written;
+
+	static {
+		for (int i = 0; i < CAPACITY; i++) {
+			entries[i] = new Entry(i);
+		}
+		Thread writer = new Thread(Log::write, "log-writer");
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread(Log::flush));
+	}
+
+	private Log() {
+	}
+
+	/*
+	 * Slot in the ring buffer. An entry is free for the producer claiming sequence
+	 * number n once its sequence is n, and ready for the writer once its sequence
+	 * is n + 1.
+	 */
+	private static class Entry {
+		volatile long sequence;
+		PrintStream stream;
+		String format;
+		String methodName;
+		Throwable throwable;
+		final Object[] args = new Object[MAX_ARGS];
+		final long[] numbers = new long[MAX_ARGS];
+		// bit i set if argument i is a number
+		int numberMask;
+		int argCount;
+
+		Entry(long sequence) {
+			this.sequence = sequence;
+		}
+	}
+
+	static boolean isEnabled() {
+		return LEVEL > 0;
+	}
+
+	static void info(String message) {
+		if (LEVEL > 0) {
+			publish(claim(System.out, message, 0));
+		}
+	}
+
+	static void info(String format, Object arg) {
+		if (LEVEL > 0) {
+			Entry entry = claim(System.out, format, 1);
+			entry.args[0] = arg;
+			publish(entry);
+		}
+	}
+
+	static void info(String format, long arg) {
+		if (LEVEL > 0) {
+			Entry entry = claim(System.out, format, 1);
+			setNumber(entry, 0, arg);
+			publish(entry);
+		}
+	}
+
+	static void info(String format, Object arg0, Object arg1) {
+		if (LEVEL > 0) {
+			Entry entry = claim(System.out, format, 2);
+			entry.args[0] = arg0;
+			entry.args[1] = arg1;
+			publish(entry);
+		}
+	}
+
+	static void info(String format, Object arg0, long arg1) {
+		if (LEVEL > 0) {
+			Entry entry = claim(System.out, format, 2);
+			entry.args[0] = arg0;
+			setNumber(entry, 1, arg1);
+			publish(entry);
+		}
+	}
+
+	static void info(String format, long arg0, Object arg1) {
+		if (LEVEL > 0) {
+			Entry entry = claim(System.out, format, 2);
+			setNumber(entry, 0, arg0);
+			entry.args[1] = arg1;
+			publish(entry);
+		}
+	}
+
+	static void info(String format, long arg0, long arg1) {
+		if (LEVEL > 0) {
+			Entry entry = claim(System.out, format, 2);
+			setNumber(entry, 0, arg0);
+			setNumber(entry, 1, arg1);
+			publish(entry);
+		}
+	}
+
+	static void info(String format, Object arg0, Object arg1, Object arg2) {
+		if (LEVEL > 0) {
+			Entry entry = claim(System.out, format, 3);
+			entry.args[0] = arg0;
+			entry.args[1] = arg1;
+			entry.args[2] = arg2;
+			publish(entry);
+		}
+	}
+
+	static void info(String format, Object arg0, long arg1, Object arg2) {
+		if (LEVEL > 0) {
+			Entry entry = claim(System.out, format, 3);
+			entry.args[0] = arg0;
+			setNumber(entry, 1, arg1);
+			entry.args[2] = arg2;
+			publish(entry);
+		}
+	}
+
+	static void severe(String message) {
+		if (LEVEL > 0) {
+			publish(claim(System.err, message, 0));
+		}
+	}
+
+	static void severe(String format, Object arg) {
+		if (LEVEL > 0) {
+			Entry entry = claim(System.err, format, 1);
+			entry.args[0] = arg;
+			publish(entry);
+		}
+	}
+
+	static void severe(String format, Object arg0, Object arg1) {
+		if (LEVEL > 0) {
+			Entry entry = claim(System.err, format, 2);
+			entry.args[0] = arg0;
+			entry.args[1] = arg1;
+			publish(entry);
+		}
+	}
+
+	static void severe(String format, Object arg0, long arg1, Object arg2) {
+		if (LEVEL > 0) {
+			Entry entry = claim(System.err, format, 3);
+			entry.args[0] = arg0;
+			setNumber(entry, 1, arg1);
+			entry.args[2] = arg2;
+			publish(entry);
+		}
+	}
+
+	/*
+	 * Logs the stack trace of the throwable, whatever the level.
+	 */
+	static void stackTrace(Throwable throwable) {
+		Entry entry = claim(System.err, null, 0);
+		entry.throwable = throwable;
+		publish(entry);
+	}
+
+	private static void setNumber(Entry entry, int index, long number) {
+		entry.numbers[index] = number;
+		entry.numberMask |= 1 << index;
+	}
+
+	private static Entry claim(PrintStream stream, String format, int argCount) {
+		long sequence = claimed.getAndIncrement();
+		Entry entry = entries[(int) (sequence & (CAPACITY - 1))];
+		// the writer has yet to write the entry from the previous round
+		while (entry.sequence != sequence) {
+			Thread.onSpinWait();
+			Thread.yield();
+		}
+		entry.stream = stream;
+		entry.format = format;
+		entry.argCount = argCount;
+		entry.numberMask = 0;
+		entry.methodName = LEVEL > 1 ? callingMethodName() : null;
+		return entry;
+	}
+
+	private static void publish(Entry entry) {
+		entry.sequence++;
+	}
+
+	private static String callingMethodName() {
+		Optional<String> name = StackWalker.getInstance().walk(frames -> frames
+				.filter(f -> !f.getClassName().equals(Log.class.getName()) && !f.getMethodName().startsWith("log"))
+				.map(f -> f.getMethodName()).findFirst());
+		return name.orElse("?");
+	}
+
+	private static void write() {
+		StringBuilder builder = new StringBuilder();
+		while (true) {
+			if (!writeNext(builder)) {
+				LockSupport.parkNanos(1_000_000);
+			}
+		}
+	}
+
+	/*
+	 * Writes out what has been logged so far, used on shutdown.
+	 */
+	static synchronized void flush() {
+		StringBuilder builder = new StringBuilder();
+		while (writeNext(builder)) {
+		}
+		System.out.flush();
+		System.err.flush();
+	}
+
+	// returns false if there was no entry ready to be written
+	private static synchronized boolean writeNext(StringBuilder builder) {
+		Entry entry = entries[(int) (written & (CAPACITY - 1))];
+		if (entry.sequence != written + 1) {
+			return false;
+		}
+
+		if (entry.throwable != null) {
+			entry.throwable.printStackTrace(entry.stream);
+		} else {
+			builder.setLength(0);
+			if (entry.methodName != null) {
+				builder.append(entry.methodName).append(": ");
+			}
+			format(builder, entry);
+			entry.stream.println(builder);
+		}
+
+		entry.throwable = null;
+		for (int i = 0; i < entry.argCount; i++) {
+			entry.args[i] = null;
+		}
+		// free for the producer one round later
+		entry.sequence = written + CAPACITY;
+		written++;
+		return true;
+	}
+
+	private static void format(StringBuilder builder, Entry entry) {
+		String format = entry.format;
+		int start = 0;
+		for (int i = 0; i < entry.argCount; i++) {
+			int placeholder = format.indexOf("{}", start);
+			if (placeholder < 0) {
+				break;
+			}
+			builder.append(format, start, placeholder);
+			if ((entry.numberMask & (1 << i)) != 0) {
+				builder.append(entry.numbers[i]);
+			} else {
+				builder.append(entry.args[i]);
+			}
+			start = placeholder + 2;
+		}
+		builder.append(format, start, format.length());
+	}
+}
@@ -0,0 +1,135 @@
+package example;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+
+/**
+ * A DtlsServer whose session is driven directly by a benchmark or the
+ * {@link JitWarmup}, with a client SSLEngine on the other end. What the session
+ * sends is kept in memory for the client, the server's own transport is never
+ * used as the server thread is not started.
+ */
+class LoopbackServer extends DtlsServer {
+	private static final InetSocketAddress CLIENT_ADDRESS = new InetSocketAddress("localhost", 1);
+
+	// packets sent by the session, not yet read by the client
+	private final Deque<ByteBuffer> toClient = new ArrayDeque<>();
+	// buffers the client has done with
+	private final Deque<ByteBuffer> free = new ArrayDeque<>();
+	private final ByteBuffer clientApp;
+	private final ByteBuffer clientNet;
+	private final DtlsServerConfig config;
+
+	private SSLEngine client;
+	private PeerSession session;
+
+	LoopbackServer(DtlsServerConfig config, SSLContext sslContext) throws Exception {
+		super(config, sslContext, null, new MemoryTransport());
+		this.config = config;
+		SSLEngine engine = sslContext.createSSLEngine();
+		clientApp = ByteBuffer.allocateDirect(engine.getSession().getApplicationBufferSize() * 2);
+		clientNet = ByteBuffer.allocateDirect(engine.getSession().getPacketBufferSize() * 2);
+	}
+
+	/*
+	 * Starts a new client and session, neither of which has handshaken yet.
+	 */
+	void connect(SSLContext sslContext) throws Exception {
+		toClient.clear();
+		if (session != null) {
+			session.close();
+		}
+		client = sslContext.createSSLEngine();
+		client.setUseClientMode(true);
+		session = new PeerSession(this, CLIENT_ADDRESS, config);
+	}
+
+	SSLEngine getClient() {
+		return client;
+	}
+
+	@Override
+	void send(ByteBuffer packet, SocketAddress peerAddr) throws IOException {
+		ByteBuffer copy = free.poll();
+		if (copy == null || copy.capacity() < packet.remaining()) {
+			copy = ByteBuffer.allocateDirect(Math.max(packet.remaining(), clientNet.capacity()));
+		}
+		copy.clear();
+		copy.put(packet).flip();
+		toClient.add(copy);
+	}
+
+	/*
+	 * Does everything the client engine tells it until both sides have finished
+	 * handshaking, the same way the session does for the server engine.
+	 */
+	void handshake() throws Exception {
+		client.beginHandshake();
+		while (client.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING || !toClient.isEmpty()) {
+			switch (client.getHandshakeStatus()) {
+			case NEED_WRAP:
+				clientNet.clear();
+				client.wrap(clientApp.clear().flip(), clientNet);
+				toServer(clientNet.flip());
+				break;
+			case NEED_TASK:
+				Runnable runnable;
+				while ((runnable = client.getDelegatedTask()) != null) {
+					runnable.run();
+				}
+				break;
+			case NEED_UNWRAP_AGAIN:
+				client.unwrap(clientNet.clear().flip(), clientApp.clear());
+				break;
+			default:
+				if (toClient.isEmpty()) {
+					throw new IllegalStateException("the handshake stalled");
+				}
+				fromServer();
+				break;
+			}
+		}
+	}
+
+	/*
+	 * Sends the application data through the client, to be echoed by the session, 
+	 * and returns the client's buffer holding the echo.
+	 */
+	ByteBuffer echo(ByteBuffer appData) throws Exception {
+		clientNet.clear();
+		client.wrap(appData, clientNet);
+		toServer(clientNet.flip());
+		if (toClient.isEmpty()) {
+			throw new IllegalStateException("no echo");
+		}
+		return fromServer();
+	}
+
+	private void toServer(ByteBuffer netData) {
+		if (netData.hasRemaining()) {
+			ByteBuffer packet = getPacketPool().lease();
+			packet.put(netData).flip();
+			session.handle(packet);
+		}
+	}
+
+	private ByteBuffer fromServer() throws Exception {
+		ByteBuffer packet = toClient.poll();
+		clientApp.clear();
+		while (packet.hasRemaining()) {
+			if (client.unwrap(packet, clientApp).bytesConsumed() == 0) {
+				break;
+			}
+		}
+		free.add(packet);
+		return clientApp.flip();
+	}
+}
@@ -2,10 +2,15 @@ package example;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
@@ -31,6 +36,41 @@ public class Main {
      *  the server is launched once directly. ; </li>
      * </ul>
      * 
+     * Tuning options are given as system properties:
+     * <ul>
+     *  <li> task.threads - number of threads running delegated tasks, 
+     *  by default these run on the server thread. </li>
+     *  <li> execution.mode - EVENT_LOOP or THREAD_PER_SESSION, see {@link ExecutionMode}. </li>
+     *  <li> cookie.prefilter - true to only keep sessions for peers which complete a cookie exchange. </li>
+     *  <li> retransmission.timeout - milliseconds until a flight is first retransmitted (default 1000), 
+     *  if retransmission is enabled. </li>
+     *  <li> handshake.timeout - milliseconds a handshake may take, 0 for no limit (default). </li>
+     *  <li> idle.timeout - milliseconds a session may be idle, 0 for no limit (default). </li>
+     *  <li> max.sessions - most sessions kept per server, 0 for no limit (default). </li>
+     *  <li> session.memory - bytes the sessions of a server may take up, 0 for no limit (default). </li>
+     *  <li> admission.source.rate - new sessions per second a source may start, 0 for no limit (default). </li>
+     *  <li> admission.rate - new sessions per second all sources together may start, 0 for no limit (default). </li>
+     *  <li> admission.burst - new sessions which may be started at once within these rates (default 10). </li>
+     *  <li> admission.prefix - length of the IPv4 prefix sources are told apart by (default 32). </li>
+     *  <li> admission.cpu - share of all CPUs, e.g. 0.9, above which no new sessions are admitted, 
+     *  0 for no limit (default), see {@link AdmissionControl}. </li>
+     *  <li> shards - number of sockets, and server threads, sharing the port using SO_REUSEPORT (default 1), 
+     *  only if the server is launched directly, see {@link ShardedServer}. </li>
+     *  <li> server.pool - number of servers the ThreadStarter keeps ready for resets (default 2). </li>
+     *  <li> warmup.handshakes - number of in-process handshakes run before listening, 
+     *  to have the JIT compile the handshake code (default 0), see {@link JitWarmup}. </li>
+     *  <li> keystores - comma-separated keystore files with the server's keys and the trusted 
+     *  certificates, all with the password student (default rsa2048.jks), e.g. rsa2048.jks,ec256.jks
+     *  to add the ECDSA key, which is then preferred by clients offering ECDSA cipher suites. </li>
+     *  <li> keystore.watch - true to load the keystore again whenever it changes, new sessions 
+     *  then use the new keys while running ones keep theirs, see {@link KeyStoreWatcher}. </li>
+     *  <li> capture.file - file to record all datagrams received and sent to, see {@link PacketCapture}, 
+     *  which {@link PacketReplay} can replay. </li>
+     *  <li> capture.size - bytes the capture file may take up (default 64 MB). </li>
+     * </ul>
+     * 
+     * The servers' metrics are registered as the MBean {@value ServerMetrics#OBJECT_NAME}, 
+     * and the ThreadStarter answers the stats command with them.
      */
     public static void main(String args[])
     {
@@ -69,15 +109,68 @@ public class Main {
         		threadStarterIpPort = argList.removeFirst();
         	}
 
+        	config.setTaskThreads(Integer.getInteger("task.threads", config.getTaskThreads()));
+        	config.setExecutionMode(ExecutionMode.valueOf(
+        			System.getProperty("execution.mode", config.getExecutionMode().name())));
+        	config.setEnableCookiePrefilter(Boolean.parseBoolean(
+        			System.getProperty("cookie.prefilter", String.valueOf(config.isCookiePrefilterEnabled()))));
+        	config.setRetransmissionTimeout(Long.getLong("retransmission.timeout", config.getRetransmissionTimeout()));
+        	config.setHandshakeTimeout(Long.getLong("handshake.timeout", config.getHandshakeTimeout()));
+        	config.setIdleTimeout(Long.getLong("idle.timeout", config.getIdleTimeout()));
+        	config.setMaxSessions(Integer.getInteger("max.sessions", config.getMaxSessions()));
+        	config.setSessionMemoryBudget(Long.getLong("session.memory", config.getSessionMemoryBudget()));
+        	config.setShards(Integer.getInteger("shards", config.getShards()));
+        	config.setSourceHandshakeRate(Integer.getInteger("admission.source.rate", config.getSourceHandshakeRate()));
+        	config.setHandshakeRate(Integer.getInteger("admission.rate", config.getHandshakeRate()));
+        	config.setHandshakeBurst(Integer.getInteger("admission.burst", config.getHandshakeBurst()));
+        	config.setSourcePrefixLength(Integer.getInteger("admission.prefix", config.getSourcePrefixLength()));
+        	config.setCpuLoadLimit(Double.parseDouble(
+        			System.getProperty("admission.cpu", String.valueOf(config.getCpuLoadLimit()))));
+
         	sslContext = getDTLSContext();
+        	int warmupHandshakes = Integer.getInteger("warmup.handshakes", 0);
+        	if (warmupHandshakes > 0) {
+        		JitWarmup.run(config, sslContext, warmupHandshakes);
+        	}
+        	if (config.getTaskThreads() > 0) {
+        		taskExecutor = new ForkJoinPool(config.getTaskThreads());
+        	}
+        	if (Boolean.getBoolean("keystore.watch")) {
+        		String[] filenames = getKeyFilenames();
+        		Path[] files = new Path[filenames.length];
+        		for (int i = 0; i < filenames.length; i++) {
+        			files[i] = Paths.get(filenames[i]);
+        		}
+        		keyStoreWatcher = new KeyStoreWatcher(sslContext, Main::getDTLSContext, files);
+        	}
+        	metrics = new ServerMetrics();
+        	metrics.register();
+        	String captureFile = System.getProperty("capture.file");
+        	if (captureFile != null) {
+        		packetCapture = new PacketCapture(Paths.get(captureFile), Integer.getInteger("capture.size", CAPTURE_SIZE));
+        		Runtime.getRuntime().addShutdownHook(new Thread(Main::closePacketCapture));
+        	}
             
-	        if (threadStarterIpPort == null) {
-	        	DtlsServer dtlsHarness = new DtlsServer(config, sslContext);
+	        if (threadStarterIpPort == null && config.getShards() > 1) {
+	        	ShardedServer shardedServer = new ShardedServer(config, sslContext, taskExecutor);
+	        	shardedServer.setMetrics(metrics);
+	        	if (keyStoreWatcher != null) {
+	        		shardedServer.setSSLContextSupplier(keyStoreWatcher);
+	        	}
+	        	if (packetCapture != null) {
+	        		shardedServer.setPacketCapture(packetCapture);
+	        	}
+	        	shardedServer.run();
+	        } else if (threadStarterIpPort == null) {
+	        	DtlsServer dtlsHarness = newServer(config, sslContext);
 	        	dtlsHarness.run();
         	} else {
         		// the server port is dynamically alocated in this case
         		config.setPort(0);
-        		ThreadStarter ts = new ThreadStarter(() -> newServer(config, sslContext), threadStarterIpPort);
+        		ThreadStarter ts = new ThreadStarter(() -> newServer(config, sslContext), 
+        				() -> newQueryExecutor(config, sslContext), threadStarterIpPort,
+        				Integer.getInteger("server.pool", ThreadStarter.POOL_SIZE));
+        		ts.setMetrics(metrics);
         		ts.run();
         	}
         	
@@ -90,7 +183,39 @@ public class Main {
     
 	private static DtlsServer newServer(DtlsServerConfig config, SSLContext sslContext) {
 		try {
-			return new DtlsServer(config, sslContext);
+			DtlsServer server = new DtlsServer(config, sslContext, taskExecutor);
+			server.setMetrics(metrics);
+			if (keyStoreWatcher != null) {
+				server.setSSLContextSupplier(keyStoreWatcher);
+			}
+			if (packetCapture != null) {
+				server.setPacketCapture(packetCapture);
+			}
+			return server;
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private static void closePacketCapture() {
+		try {
+			packetCapture.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+	
+	// queries are run on the calling thread, delegated tasks included
+	private static QueryExecutor newQueryExecutor(DtlsServerConfig config, SSLContext sslContext) {
+		try {
+			MemoryTransport transport = new MemoryTransport();
+			DtlsServer server = new DtlsServer(config, sslContext, null, transport);
+			server.setMetrics(metrics);
+			if (keyStoreWatcher != null) {
+				server.setSSLContextSupplier(keyStoreWatcher);
+			}
+			return new QueryExecutor(server, transport, config);
 		} catch (Exception e) {
 			e.printStackTrace();
 			throw new RuntimeException(e);
@@ -98,33 +223,59 @@ public class Main {
 	}
 	
 	/*
-	 * The following is to set up the keystores.
+	 * The following is to set up the keystores, which hold the trusted 
+	 * certificates as well. The keystores property overrides the files.
 	 */
-	private static final String keyFilename = "rsa2048.jks";
+	private static final String keyFilenames = "rsa2048.jks";
 	private static final String keyPasswd = "student";
-	private static final String trustFilename = "rsa2048.jks";
-	private static final String trustPasswd = "student";
 	
 	private static SSLContext sslContext;
 	
+	// shared by all servers, null if delegated tasks are run by the servers themselves
+	private static Executor taskExecutor;
+	
+	private static final int CAPTURE_SIZE = 64 * 1024 * 1024;
+	// null if the keystore is not watched
+	private static KeyStoreWatcher keyStoreWatcher;
+	// shared by all servers
+	private static ServerMetrics metrics;
+	// shared by all servers, null if datagrams are not recorded
+	private static PacketCapture packetCapture;
+	
+	static String[] getKeyFilenames() {
+		return System.getProperty("keystores", keyFilenames).split(",");
+	}
+
 	// get DTSL context
 	static SSLContext getDTLSContext() throws GeneralSecurityException, IOException {
-		KeyStore ks = KeyStore.getInstance("JKS");
-		KeyStore ts = KeyStore.getInstance("JKS");
-
-		try (FileInputStream fis = new FileInputStream(keyFilename)) {
-			ks.load(fis, keyPasswd.toCharArray());
-		}
+		return getDTLSContext(getKeyFilenames());
+	}
 
-		try (FileInputStream fis = new FileInputStream(trustFilename)) {
-			ts.load(fis, trustPasswd.toCharArray());
+	/*
+	 * With keys of several types, e.g. RSA and EC, the engine picks the cipher
+	 * suite first, the most preferred one the client offers and a key is there for,
+	 * and then asks the key manager for a key of the suite's type. As server's 
+	 * prefer ECDHE_ECDSA suites by default, the cheaper ECDSA key is used whenever 
+	 * the client allows it. The PKIX key manager, unlike SunX509, also checks the 
+	 * certificate against the signature algorithms the client accepts.
+	 */
+	static SSLContext getDTLSContext(String... filenames) throws GeneralSecurityException, IOException {
+		KeyStore ks = KeyStore.getInstance("JKS");
+		ks.load(null, null);
+		for (String filename : filenames) {
+			KeyStore store = loadKeyStore(filename, keyPasswd);
+			KeyStore.PasswordProtection protection = new KeyStore.PasswordProtection(keyPasswd.toCharArray());
+			for (String alias : Collections.list(store.aliases())) {
+				KeyStore.ProtectionParameter param = store.isKeyEntry(alias) ? protection : null;
+				ks.setEntry(filename + "/" + alias, store.getEntry(alias, param), param);
+			}
 		}
 
-		KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance("PKIX");
 		kmf.init(ks, keyPasswd.toCharArray());
 
 		TrustManagerFactory tmf = TrustManagerFactory.getInstance("SunX509");
-		tmf.init(ts);
+		tmf.init(ks);
 
 		SSLContext sslCtx = SSLContext.getInstance("DTLS");
 		sslCtx.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
@@ -132,4 +283,12 @@ public class Main {
 		return sslCtx;
 	}
 	
+	private static KeyStore loadKeyStore(String filename, String passwd) throws GeneralSecurityException, IOException {
+		KeyStore keyStore = KeyStore.getInstance("JKS");
+		try (FileInputStream fis = new FileInputStream(filename)) {
+			keyStore.load(fis, passwd.toCharArray());
+		}
+		return keyStore;
+	}
+	
 }
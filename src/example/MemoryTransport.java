@@ -0,0 +1,134 @@
+package example;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A transport over in-memory queues, for a driver (e.g. a test or a learner)
+ * living in the same JVM as the server. No sockets are involved.
+ *
+ * The driver hands datagrams to the server with {@link #deliver} and takes
+ * what the server sent to a peer address with {@link #poll}. After delivering,
+ * {@link #awaitIdle()} waits until the server has processed everything it was
+ * given, so the driver knows all responses are there without relying on
+ * timeouts. This only holds if the server runs delegated tasks on its own
+ * thread, that is without a task executor or session threads.
+ */
+public class MemoryTransport implements DatagramTransport {
+
+	private static class Datagram {
+		final SocketAddress address;
+		final ByteBuffer data;
+
+		Datagram(SocketAddress address, ByteBuffer data) {
+			this.address = address;
+			this.data = data;
+		}
+	}
+
+	private final Deque<Datagram> inbound = new ArrayDeque<>();
+	private final Map<SocketAddress, Deque<ByteBuffer>> outbound = new HashMap<>();
+	// true while the server thread waits with nothing to receive
+	private boolean waiting;
+	private boolean woken;
+	private boolean closed;
+
+	@Override
+	public synchronized void await(long timeoutMillis) {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		while (inbound.isEmpty() && !woken && !closed) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (timeoutMillis > 0 && remaining <= 0) {
+				break;
+			}
+			waiting = true;
+			notifyAll();
+			try {
+				wait(timeoutMillis > 0 ? remaining : 0);
+			} catch (InterruptedException e) {
+				// the server checks for interruption once we return
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		waiting = false;
+		woken = false;
+	}
+
+	@Override
+	public synchronized void wakeup() {
+		woken = true;
+		notifyAll();
+	}
+
+	@Override
+	public synchronized SocketAddress receive(ByteBuffer dst) {
+		Datagram datagram = inbound.poll();
+		if (datagram == null) {
+			return null;
+		}
+		// like a socket, drops what does not fit
+		ByteBuffer data = datagram.data;
+		dst.put(data.limit(data.position() + Math.min(data.remaining(), dst.remaining())));
+		return datagram.address;
+	}
+
+	@Override
+	public synchronized int send(ByteBuffer src, SocketAddress target) {
+		int length = src.remaining();
+		if (!closed) {
+			outbound.computeIfAbsent(target, a -> new ArrayDeque<>()).add(copy(src));
+			notifyAll();
+		}
+		return length;
+	}
+
+	@Override
+	public int getLocalPort() {
+		return 0;
+	}
+
+	@Override
+	public synchronized void close() {
+		closed = true;
+		notifyAll();
+	}
+
+	/**
+	 * Hands the server a copy of the remaining bytes of the buffer, as a datagram
+	 * from the given address.
+	 */
+	public synchronized void deliver(ByteBuffer datagram, SocketAddress from) {
+		inbound.add(new Datagram(from, copy(datagram)));
+		notifyAll();
+	}
+
+	/**
+	 * Returns the next datagram the server sent to the address, null if there is
+	 * none.
+	 */
+	public synchronized ByteBuffer poll(SocketAddress to) {
+		Deque<ByteBuffer> datagrams = outbound.get(to);
+		return datagrams == null ? null : datagrams.poll();
+	}
+
+	/**
+	 * Waits until the server has received all datagrams delivered so far and is
+	 * waiting for more.
+	 */
+	public synchronized void awaitIdle() throws InterruptedException {
+		while (!closed && !(waiting && !woken && inbound.isEmpty())) {
+			wait();
+		}
+	}
+
+	private static ByteBuffer copy(ByteBuffer src) {
+		ByteBuffer copy = ByteBuffer.allocate(src.remaining());
+		copy.put(src).flip();
+		return copy;
+	}
+}
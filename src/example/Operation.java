@@ -1,5 +1,9 @@
 package example;
 
+/**
+ * What the server does with each peer. A peer whose session has done what the
+ * operation asks for is ignored from then on.
+ */
 public enum Operation {
 	/**
 	 * Basic mode of operation entails performing a single handshake.
@@ -14,7 +18,7 @@ public enum Operation {
 	
 	/**
 	 * Full mode of operation entails a continuous loop of handshaking and echo-ing data.
-	 * In this mode the server only terminates if the engine is closed. 
+	 * In this mode the session of a peer only ends if its engine is closed. 
 	 */
 	FULL,
 	
@@ -0,0 +1,140 @@
+package example;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records the datagrams servers receive and send, into a memory-mapped file of
+ * a fixed size.
+ *
+ * The file starts with a magic number and the time the capture started, in
+ * milliseconds since the epoch. Every datagram is then appended as a record:
+ * <pre>
+ * int    length of the rest of the record
+ * long   nanoseconds since the capture started
+ * byte   direction, 0 for received and 1 for sent
+ * byte   length of the peer's IP address, 4 or 16
+ * byte[] peer IP address
+ * short  peer port
+ * byte[] datagram
+ * </pre>
+ * A length of 0 marks the end. Any thread may record, each reserves the space
+ * for its record up front and then fills it in. Once the file is full, further
+ * datagrams are not recorded.
+ */
+class PacketCapture implements Closeable {
+	static final byte RECEIVED = 0;
+	static final byte SENT = 1;
+
+	private static final byte[] MAGIC = "DTLSCAP1".getBytes(StandardCharsets.US_ASCII);
+	private static final int HEADER_LENGTH = MAGIC.length + 8;
+
+	/*
+	 * A recorded datagram.
+	 */
+	static class Record {
+		final long nanos;
+		final byte direction;
+		final InetSocketAddress peerAddr;
+		final ByteBuffer datagram;
+
+		Record(long nanos, byte direction, InetSocketAddress peerAddr, ByteBuffer datagram) {
+			this.nanos = nanos;
+			this.direction = direction;
+			this.peerAddr = peerAddr;
+			this.datagram = datagram;
+		}
+	}
+
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final AtomicInteger position;
+	private final long start;
+	private volatile boolean full;
+
+	PacketCapture(Path file, int capacity) throws IOException {
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+		buffer.put(MAGIC).putLong(System.currentTimeMillis());
+		position = new AtomicInteger(HEADER_LENGTH);
+		start = System.nanoTime();
+	}
+
+	/*
+	 * Records the remaining bytes of the datagram, leaving its position as it is.
+	 */
+	void record(byte direction, InetSocketAddress peerAddr, ByteBuffer datagram) {
+		if (full) {
+			return;
+		}
+		long nanos = System.nanoTime() - start;
+		byte[] address = peerAddr.getAddress().getAddress();
+		int length = 8 + 1 + 1 + address.length + 2 + datagram.remaining();
+		// room is left for the end marker
+		int index = position.getAndAdd(4 + length);
+		if (index + 4 + length + 4 > buffer.capacity()) {
+			full = true;
+			Log.severe("packet capture is full, no longer recording");
+			return;
+		}
+		buffer.putInt(index, length);
+		buffer.putLong(index + 4, nanos);
+		buffer.put(index + 12, direction);
+		buffer.put(index + 13, (byte) address.length);
+		buffer.put(index + 14, address);
+		buffer.putShort(index + 14 + address.length, (short) peerAddr.getPort());
+		buffer.put(index + 16 + address.length, datagram, datagram.position(), datagram.remaining());
+	}
+
+	@Override
+	public void close() throws IOException {
+		buffer.force();
+		channel.close();
+	}
+
+	/*
+	 * Reads all records of a capture file.
+	 */
+	static List<Record> read(Path file) throws IOException {
+		List<Record> records = new ArrayList<>();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			byte[] magic = new byte[MAGIC.length];
+			buffer.get(magic).getLong();
+			if (!Arrays.equals(magic, MAGIC)) {
+				throw new IOException(file + " is not a packet capture");
+			}
+			while (buffer.remaining() >= 4) {
+				int length = buffer.getInt();
+				if (length == 0) {
+					break;
+				}
+				int end = buffer.position() + length;
+				long nanos = buffer.getLong();
+				byte direction = buffer.get();
+				byte[] address = new byte[buffer.get()];
+				buffer.get(address);
+				int port = buffer.getShort() & 0xFFFF;
+				ByteBuffer datagram = ByteBuffer.allocate(end - buffer.position());
+				datagram.put(buffer.limit(end)).flip();
+				buffer.limit(buffer.capacity());
+				records.add(new Record(nanos, direction, new InetSocketAddress(InetAddress.getByAddress(address), port),
+						datagram));
+			}
+		}
+		return records;
+	}
+}
@@ -0,0 +1,86 @@
+package example;
+
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * Replays the datagrams a server received, as recorded by a
+ * {@link PacketCapture}, into a fresh server over a {@link MemoryTransport}.
+ *
+ * Datagrams are delivered in the order they were recorded, as fast as the
+ * server takes them: the next one is delivered once the server has handled
+ * the previous one, which keeps the order of processing the same from run to
+ * run. Reported are the time the server took for each datagram and how many
+ * datagrams it sent compared to the recording.
+ *
+ * The server's side of a handshake is not what was recorded, its random, keys
+ * and cookie secret are new, so replayed handshakes diverge from the original
+ * ones at the second ClientHello (whose cookie is no longer valid) and never
+ * get as far as application data. The replay measures how the server handles
+ * the client's first flights, mostly the ClientHellos.
+ */
+public class PacketReplay {
+
+	public static void main(String args[]) throws Exception {
+		if (args.length == 0) {
+			System.out.println("USAGE: java PacketReplay capture_file [NEEDED|WANTED|DISABLED [operation [retransmission_enabled]]]");
+			return;
+		}
+		DtlsServerConfig config = new DtlsServerConfig();
+		if (args.length > 1) {
+			config.setAuth(ClientAuth.valueOf(args[1]));
+		}
+		if (args.length > 2) {
+			config.setOperation(Operation.valueOf(args[2]));
+		}
+		if (args.length > 3) {
+			config.setEnableRetransmission(Boolean.parseBoolean(args[3]));
+		}
+
+		List<PacketCapture.Record> records = PacketCapture.read(Paths.get(args[0]));
+		SSLContext sslContext = Main.getDTLSContext();
+		MemoryTransport transport = new MemoryTransport();
+		// delegated tasks run on the server thread, so that it is idle only once done
+		DtlsServer server = new DtlsServer(config, sslContext, null, transport);
+		server.start();
+
+		LatencyHistogram latencies = new LatencyHistogram();
+		Set<InetSocketAddress> peers = new HashSet<>();
+		int received = 0;
+		int recordedSent = 0;
+		int sent = 0;
+		long start = System.nanoTime();
+		try {
+			for (PacketCapture.Record record : records) {
+				if (record.direction == PacketCapture.SENT) {
+					recordedSent++;
+					continue;
+				}
+				received++;
+				peers.add(record.peerAddr);
+				long delivered = System.nanoTime();
+				transport.deliver(record.datagram, record.peerAddr);
+				transport.awaitIdle();
+				latencies.record(System.nanoTime() - delivered);
+				while (transport.poll(record.peerAddr) != null) {
+					sent++;
+				}
+			}
+		} finally {
+			server.interrupt();
+		}
+		long elapsed = System.nanoTime() - start;
+
+		System.out.println("Replayed " + received + " datagrams from " + peers.size() + " peers in "
+				+ TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms, "
+				+ String.format("%.1f", received * 1e9 / Math.max(1, elapsed)) + " datagrams/s");
+		System.out.println("Datagrams sent: " + sent + ", recorded: " + recordedSent);
+		System.out.println("Latency: " + latencies.summary());
+	}
+}
@@ -0,0 +1,796 @@
+package example;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * The state the server keeps for one remote peer: its SSLEngine and where it
+ * is in the mode of operation.
+ *
+ * A session does not receive anything itself, the {@link DtlsServer} hands it
+ * every datagram arriving from its peer address. The session then does
+ * everything the SSLEngine tells it until the engine is waiting for more
+ * network data.
+ * 
+ * If the server has a task executor, delegated tasks are run on it and the
+ * session is resumed on the server thread once they are done. Datagrams
+ * arriving in the meantime are kept until then.
+ * 
+ * In {@link ExecutionMode#THREAD_PER_SESSION} the session instead runs on its
+ * own thread, taking datagrams delivered by the server from its inbox and
+ * running delegated tasks itself.
+ * 
+ * Timeouts are kept on the server's {@link TimerWheel}: flights are
+ * retransmitted, with the timeout doubling every time, for as long as the peer
+ * does not answer, and the server closes sessions whose handshake takes too
+ * long or which have been idle for too long.
+ */
+class PeerSession {
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+	// the longest retransmission timeout, as in RFC 6347
+	private static final long MAX_RETRANSMISSION_TIMEOUT = 60000;
+
+	private final DtlsServer server;
+	private final InetSocketAddress peerAddr;
+	private final DtlsServerConfig config;
+	private final ServerMetrics metrics;
+	private SSLEngine engine;
+
+	// true while the engine is in a handshake we have not yet reported as finished
+	private boolean handshaking;
+
+	// true once a handshake has finished
+	private volatile boolean established;
+
+	// true once the session has done all the mode of operation asks for,
+	// datagrams from the peer are then ignored
+	private volatile boolean done;
+
+	// true once the session has been closed, it is then no longer the server's
+	private volatile boolean closed;
+
+	// true while delegated tasks of the engine are running on the task executor
+	private boolean runningTasks;
+	private final Deque<ByteBuffer> pendingPackets;
+
+	// only used if the session runs on its own thread, holds datagrams and
+	// the tasks of expired timeouts
+	private BlockingQueue<Object> inbox;
+	private Thread thread;
+
+	private final TimerWheel.Timeout retransmissionTimer;
+	private final TimerWheel.Timeout handshakeTimer;
+	private final TimerWheel.Timeout idleTimer;
+	private long retransmissionTimeout;
+	// true once the engine has sent a flight in the current handshake
+	private boolean flightSent;
+
+	// when the current handshake started, and since when the engine has been
+	// waiting for the peer, 0 if it is not
+	private long handshakeStart;
+	private long unwrapWaitStart;
+
+	PeerSession(DtlsServer server, InetSocketAddress peerAddr, DtlsServerConfig config) throws Exception {
+		this(server, peerAddr, config, null);
+	}
+
+	/*
+	 * The engine, if given, has already begun its handshake.
+	 */
+	PeerSession(DtlsServer server, InetSocketAddress peerAddr, DtlsServerConfig config, SSLEngine engine) throws Exception {
+		this.server = server;
+		this.peerAddr = peerAddr;
+		this.config = config;
+		this.metrics = server.getMetrics();
+		this.pendingPackets = new ArrayDeque<>();
+		this.retransmissionTimer = new TimerWheel.Timeout(() -> runOnSession(this::retransmit));
+		this.handshakeTimer = new TimerWheel.Timeout(() -> server.closeSession(this, "handshake timed out"));
+		this.idleTimer = new TimerWheel.Timeout(() -> server.closeSession(this, "idle"));
+		if (engine == null) {
+			startEngine();
+		} else {
+			this.engine = engine;
+			handshakeStarted();
+		}
+	}
+
+	InetSocketAddress getPeerAddress() {
+		return peerAddr;
+	}
+
+	boolean isDone() {
+		return done;
+	}
+
+	boolean isEstablished() {
+		return established;
+	}
+
+	/*
+	 * Starts the thread the session runs on from now on.
+	 */
+	void startThread(ThreadFactory threadFactory) {
+		inbox = new LinkedBlockingQueue<>();
+		thread = threadFactory.newThread(this::runThread);
+		thread.start();
+	}
+
+	void interruptThread() {
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	/*
+	 * Ends the session, datagrams from the peer are ignored from now on.
+	 */
+	void close() {
+		closed = true;
+		end();
+		server.getTimerWheel().cancel(idleTimer);
+	}
+
+	/*
+	 * Ends a session which has done all the mode of operation asks for. It stays
+	 * with the server, ignoring datagrams from the peer, until it is evicted or
+	 * the peer has been quiet for the idle timeout.
+	 */
+	private void finish() {
+		end();
+		restartIdleTimer();
+	}
+
+	private void end() {
+		done = true;
+		if (handshaking) {
+			handshaking = false;
+			metrics.handshakesFailed.increment();
+		}
+		TimerWheel timerWheel = server.getTimerWheel();
+		timerWheel.cancel(retransmissionTimer);
+		timerWheel.cancel(handshakeTimer);
+		interruptThread();
+	}
+
+	private void restartIdleTimer() {
+		if (config.getIdleTimeout() > 0) {
+			server.getTimerWheel().schedule(idleTimer, config.getIdleTimeout());
+		}
+	}
+
+	/*
+	 * Closes the session on the thread it runs on. Called on the server thread.
+	 */
+	void closeOnSession() {
+		runOnSession(this::close);
+	}
+
+	/*
+	 * Closes the session to make room for others, telling the peer if the
+	 * session is established. Called on the server thread.
+	 */
+	void evict() {
+		runOnSession(() -> {
+			if (established && !runningTasks && !engine.isOutboundDone()) {
+				sendCloseNotify();
+			}
+			close();
+		});
+	}
+
+	private void sendCloseNotify() {
+		engine.closeOutbound();
+		ByteBuffer oNet = leasePacketBuffer();
+		try {
+			wrap(EMPTY, oNet);
+			oNet.flip();
+			if (oNet.hasRemaining()) {
+				server.send(oNet, peerAddr);
+			}
+		} catch (Exception exc) {
+			Log.severe("{} Exception while sending close_notify", peerAddr);
+			Log.stackTrace(exc);
+		} finally {
+			server.getPacketPool().release(oNet);
+		}
+	}
+
+	// runs the task on the thread the session runs on
+	private void runOnSession(Runnable task) {
+		if (thread != null) {
+			inbox.add(task);
+		} else {
+			task.run();
+		}
+	}
+
+	/*
+	 * Hands a datagram to the session's thread.
+	 */
+	void deliver(ByteBuffer netData) {
+		if (done) {
+			if (!closed) {
+				restartIdleTimer();
+			}
+			server.getPacketPool().release(netData);
+		} else {
+			inbox.add(netData);
+		}
+	}
+
+	private void runThread() {
+		try {
+			while (!done) {
+				Object item = inbox.take();
+				if (item instanceof ByteBuffer) {
+					handle((ByteBuffer) item);
+				} else {
+					((Runnable) item).run();
+				}
+			}
+		} catch (InterruptedException e) {
+			Log.info("{} session thread has been interrupted", peerAddr);
+		} finally {
+			Object item;
+			while ((item = inbox.poll()) != null) {
+				if (item instanceof ByteBuffer) {
+					server.getPacketPool().release((ByteBuffer) item);
+				}
+			}
+		}
+	}
+
+	private void startEngine() throws Exception {
+		engine = server.createSSLEngine();
+		engine.beginHandshake();
+		handshakeStarted();
+	}
+
+	private void handshakeStarted() {
+		handshaking = true;
+		flightSent = false;
+		handshakeStart = System.nanoTime();
+		metrics.handshakesStarted.increment();
+		if (config.getHandshakeTimeout() > 0) {
+			server.getTimerWheel().schedule(handshakeTimer, config.getHandshakeTimeout());
+		}
+	}
+
+	/*
+	 * Processes a datagram received from the peer. The buffer is leased from the
+	 * server's packet pool, the session releases it once it has been processed.
+	 */
+	void handle(ByteBuffer netData) {
+		if (done) {
+			Log.info("{} session is done, ignoring packet of length {}", peerAddr, netData.remaining());
+			if (!closed) {
+				restartIdleTimer();
+			}
+			server.getPacketPool().release(netData);
+			return;
+		}
+		if (runningTasks) {
+			Log.info("{} delegated tasks are running, keeping packet of length {}", peerAddr, netData.remaining());
+			pendingPackets.add(netData);
+			return;
+		}
+		restartIdleTimer();
+		if (unwrapWaitStart != 0) {
+			metrics.unwrapWaitLatency.record(System.nanoTime() - unwrapWaitStart);
+			unwrapWaitStart = 0;
+		}
+
+		try {
+			if (engine.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING) {
+				unwrapHandshake(netData);
+			} else {
+				echoRecords(netData);
+			}
+		} catch (Exception exc) {
+			Log.severe("{} Exception while processing packet", peerAddr);
+			Log.stackTrace(exc);
+			Log.severe("{} Continuing to flush causative problem", peerAddr);
+		} finally {
+			server.getPacketPool().release(netData);
+		}
+
+		proceed();
+	}
+
+	/*
+	 * Called on the server thread once the delegated tasks run on the task executor
+	 * are done.
+	 */
+	void tasksFinished() {
+		runningTasks = false;
+		proceed();
+		while (!runningTasks && !pendingPackets.isEmpty()) {
+			handle(pendingPackets.poll());
+		}
+	}
+
+	private void proceed() {
+		driveHandshake();
+		if (runningTasks) {
+			return;
+		}
+		scheduleRetransmission();
+
+		if (!done && DtlsServer.isEngineClosed(engine)) {
+			if (handshaking) {
+				handshaking = false;
+				metrics.handshakesFailed.increment();
+			}
+			// ok, the engine is closed, if resumption was enabled we create a new engine,
+			// otherwise we are done.
+			if (config.getOperation() == Operation.FULL_SR && config.isResumptionEnabled()) {
+				Log.info("{} engine closed, creating a new one", peerAddr);
+				try {
+					startEngine();
+				} catch (Exception exc) {
+					Log.severe("{} Could not create a new engine", peerAddr);
+					Log.stackTrace(exc);
+					done = true;
+				}
+			} else {
+				Log.info("{} engine closed", peerAddr);
+				done = true;
+			}
+		}
+
+		if (done && !closed) {
+			finish();
+		}
+	}
+
+	/*
+	 * Executes handshake steps until the engine needs network data from the peer.
+	 *
+	 * The code is messy, what is important is that we do everything the SSLEngine
+	 * tells us. There are essentially 4 commands an SSLEngine can issue (associated
+	 * with the HandshakeStatus): 1. unwrap - meaning the engine is expecting to
+	 * receive network data. This data arrives with the next datagram from the peer.
+	 * 2. wrap - meaning the engine has network data ready. This data should be
+	 * gathered from the engine and sent. 3. execute task - meaning the engine
+	 * requests execution of some tasks. We should just execute them. 4. finished
+	 * handshaking - the engine is done with the current handshake. That might mean
+	 * that the handshake was completed successfully. Either that or invalid
+	 * messages rendered the engine unable to continue with the handshake.
+	 *
+	 * In the latter case, we expect the engine to be in a closed state.
+	 */
+	private void driveHandshake() {
+		while (!done && !DtlsServer.isEngineClosed(engine)) {
+			HandshakeStatus hs = engine.getHandshakeStatus();
+			if (hs == HandshakeStatus.NEED_UNWRAP) {
+				Log.info("{} expecting DTLS records", peerAddr);
+				if (unwrapWaitStart == 0) {
+					unwrapWaitStart = System.nanoTime();
+				}
+				return;
+			}
+			if (!doHandshakeStepCatchExceptions(hs) && engine.getHandshakeStatus() == hs) {
+				// the step failed and got us nowhere, wait for the peer rather than spin
+				return;
+			}
+			if (hs == HandshakeStatus.NOT_HANDSHAKING || runningTasks) {
+				return;
+			}
+		}
+	}
+
+	private boolean doHandshakeStepCatchExceptions(HandshakeStatus hs) {
+		DtlsEvents.HandshakeStep event = new DtlsEvents.HandshakeStep();
+		event.begin();
+		try {
+			doHandshakeStep(hs);
+			return true;
+		} catch (Exception exc) {
+			Log.severe("{} Exception while executing handshake step", peerAddr);
+			Log.stackTrace(exc);
+			Log.severe("{} Continuing to flush causative problem", peerAddr);
+			return false;
+		} finally {
+			if (event.shouldCommit()) {
+				event.peer = peerAddr.toString();
+				event.handshakeStatus = hs.name();
+				event.commit();
+			}
+		}
+	}
+
+	private void doHandshakeStep(HandshakeStatus hs) throws Exception {
+		Log.info("{} handshake status: {}", peerAddr, hs);
+		if (engine.getHandshakeSession() != null) {
+			handshaking = true;
+		}
+		switch (hs) {
+		// SSLEngine is expecting buffered network data to be processed again
+		case NEED_UNWRAP_AGAIN:
+			unwrapHandshake(EMPTY);
+			break;
+
+		// SSLEngine wants to send network data to the outside world
+		case NEED_WRAP:
+			Log.info("{} preparing to send DTLS records", peerAddr);
+			long wrapStart = System.nanoTime();
+			int packets = produceHandshakePackets();
+			metrics.wrapLatency.record(System.nanoTime() - wrapStart);
+			if (packets > 0) {
+				// a new flight, the peer gets the full timeout to answer it
+				flightSent = true;
+				retransmissionTimeout = config.getRetransmissionTimeout();
+				server.getTimerWheel().cancel(retransmissionTimer);
+			}
+			break;
+
+		// SSLEngine wants some tasks to be executed.
+		case NEED_TASK:
+			runDelegatedTasks();
+			break;
+
+		// SSLEngine has finished handshaking
+		case NOT_HANDSHAKING:
+			if (handshaking) {
+				Log.info("{} finished handshaking", peerAddr);
+				handshaking = false;
+				handshakeFinished();
+			}
+			break;
+
+		case FINISHED:
+			throw new Exception("Unexpected status, SSLEngine.getHandshakeStatus() " + "shouldn't return FINISHED");
+
+		default:
+			break;
+		}
+	}
+
+	private void handshakeFinished() throws Exception {
+		SSLEngineResult.HandshakeStatus hs = engine.getHandshakeStatus();
+		Log.info("{} Handshake finished, status is {}", peerAddr, hs);
+		metrics.handshakesCompleted.increment();
+		metrics.handshakeLatency.record(System.nanoTime() - handshakeStart);
+		established = true;
+		flightSent = false;
+		server.getTimerWheel().cancel(retransmissionTimer);
+		server.getTimerWheel().cancel(handshakeTimer);
+
+		if (config.getOperation() == Operation.BASIC) {
+			// basic mode, nothing more needs to be done
+			done = true;
+		}
+
+		if (engine.getHandshakeSession() != null) {
+			throw new Exception("Handshake finished, but handshake session is not null");
+		}
+
+		SSLSession session = engine.getSession();
+		if (session == null) {
+			throw new Exception("Handshake finished, but session is null");
+		}
+		Log.info("{} Negotiated protocol is {}", peerAddr, session.getProtocol());
+		Log.info("{} Negotiated cipher suite is {}", peerAddr, session.getCipherSuite());
+
+		if (Log.isEnabled()) {
+			try {
+				Log.info("{} Verified peer certificates are {}", peerAddr, Arrays.asList(engine.getSession().getPeerCertificates()));
+			} catch (SSLPeerUnverifiedException exception) {
+				Log.info("{} SSL peer unverified", peerAddr);
+			}
+		}
+	}
+
+	// feeds handshake records to the engine
+	private void unwrapHandshake(ByteBuffer iNet) throws Exception {
+		ByteBuffer iApp = leaseAppBuffer();
+		try {
+			unwrapHandshake(iNet, iApp);
+		} finally {
+			server.getAppPool().release(iApp);
+		}
+	}
+
+	private void unwrapHandshake(ByteBuffer iNet, ByteBuffer iApp) throws Exception {
+		do {
+			SSLEngineResult r = unwrap(iNet, iApp);
+			SSLEngineResult.Status rs = r.getStatus();
+			switch (rs) {
+			case OK:
+				continue;
+			case BUFFER_OVERFLOW:
+			case BUFFER_UNDERFLOW:
+				throw new Exception("Unexpected buffer error: " + rs);
+			case CLOSED:
+				return;
+			default:
+				throw new Exception("This branch should not be reachable");
+			}
+		} while (iNet.hasRemaining());
+	}
+
+	/*
+	 * Echoes the application data of every record in the datagram. Each record is
+	 * decrypted into a leased buffer and encrypted from there straight into the
+	 * leased buffer the echo is sent from, the same two buffers serving all of
+	 * the datagram's records.
+	 */
+	private void echoRecords(ByteBuffer netData) throws Exception {
+		ByteBuffer appData = leaseAppBuffer();
+		ByteBuffer appNet = leasePacketBuffer();
+		try {
+			while (netData.hasRemaining() && !done) {
+				appData.clear();
+				long start = System.nanoTime();
+				SSLEngineResult r = unwrap(netData, appData);
+				if (r.getStatus() != Status.OK) {
+					return;
+				}
+				if (appData.position() > 0) {
+					Log.info("{} Server received application data", peerAddr);
+					appData.flip();
+					appNet.clear();
+					produceApplicationPacket(appData, appNet);
+					if (appNet.hasRemaining()) {
+						Log.info("{} sending 1 packet", peerAddr);
+						server.send(appNet, peerAddr);
+					}
+					metrics.echoLatency.record(System.nanoTime() - start);
+					if (config.getOperation() == Operation.ONE_ECHO) {
+						done = true;
+					}
+				}
+				if (engine.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING) {
+					// e.g. the peer retransmitted its last flight, the rest is up to the handshake
+					if (netData.hasRemaining()) {
+						unwrapHandshake(netData);
+					}
+					return;
+				}
+				if (r.bytesConsumed() == 0) {
+					return;
+				}
+			}
+		} finally {
+			server.getAppPool().release(appData);
+			server.getPacketPool().release(appNet);
+		}
+	}
+
+	/*
+	 * While the engine waits for the peer to answer its flight, has the flight
+	 * retransmitted once the retransmission timeout passes.
+	 */
+	private void scheduleRetransmission() {
+		if (config.isEnableRetransmission() && flightSent && !done && !retransmissionTimer.isScheduled()
+				&& engine.getHandshakeStatus() == HandshakeStatus.NEED_UNWRAP) {
+			server.getTimerWheel().schedule(retransmissionTimer, retransmissionTimeout);
+		}
+	}
+
+	/*
+	 * Called once the retransmission timeout has passed. With retransmissions
+	 * enabled, wrapping while the engine waits for the peer gets the last flight
+	 * out of it again.
+	 */
+	private void retransmit() {
+		if (done || runningTasks || !flightSent || engine.getHandshakeStatus() != HandshakeStatus.NEED_UNWRAP) {
+			return;
+		}
+		Log.info("{} no answer within {} ms, retransmitting", peerAddr, retransmissionTimeout);
+		retransmissionTimeout = Math.min(retransmissionTimeout * 2, MAX_RETRANSMISSION_TIMEOUT);
+		ByteBuffer oNet = leasePacketBuffer();
+		try {
+			wrap(EMPTY, oNet);
+			oNet.flip();
+			if (oNet.hasRemaining()) {
+				server.send(oNet, peerAddr);
+			}
+			// the rest of the flight
+			if (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+				produceHandshakePackets();
+			}
+		} catch (Exception exc) {
+			Log.severe("{} Exception while retransmitting", peerAddr);
+			Log.stackTrace(exc);
+		} finally {
+			server.getPacketPool().release(oNet);
+		}
+		scheduleRetransmission();
+	}
+
+	// produce handshake packets and send them as they are produced, returns the number of packets
+	private int produceHandshakePackets() throws Exception {
+		int packets = 0;
+
+		while (engine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+
+			ByteBuffer oNet = leasePacketBuffer();
+			try {
+				SSLEngineResult r = wrap(EMPTY, oNet);
+				oNet.flip();
+
+				Status rs = r.getStatus();
+
+				switch (rs) {
+				case BUFFER_UNDERFLOW:
+				case BUFFER_OVERFLOW:
+					throw new Exception("Unexpected buffer error: " + rs);
+				case CLOSED:
+				case OK:
+					if (oNet.hasRemaining()) {
+						server.send(oNet, peerAddr);
+						packets++;
+					}
+					break;
+				default:
+					throw new Exception("This branch should not be reachable " + rs);
+				}
+			} finally {
+				server.getPacketPool().release(oNet);
+			}
+
+		}
+
+		Log.info("{} produced {} packets", peerAddr, packets);
+		return packets;
+	}
+
+	// produce an application packet, appNet is flipped for sending afterwards
+	private void produceApplicationPacket(ByteBuffer source, ByteBuffer appNet) throws Exception {
+		SSLEngineResult r = wrap(source, appNet);
+		appNet.flip();
+		SSLEngineResult.Status rs = r.getStatus();
+		switch (rs) {
+		case BUFFER_OVERFLOW:
+		case BUFFER_UNDERFLOW:
+			throw new Exception("Unexpected buffer error: " + rs);
+		case OK:
+			break;
+		case CLOSED:
+			throw new Exception("SSLEngine has closed unexpectedly");
+		default:
+			throw new Exception("This branch should not be reachable " + rs);
+		}
+	}
+
+	// run delegated tasks
+	private void runDelegatedTasks() throws Exception {
+		// a session with a thread of its own may as well block on its tasks
+		Executor executor = server.getTaskExecutor();
+		if (executor != null && thread == null) {
+			List<Runnable> tasks = new ArrayList<>();
+			Runnable runnable;
+			while ((runnable = engine.getDelegatedTask()) != null) {
+				tasks.add(runnable);
+			}
+			runningTasks = true;
+			Log.info("{} running {} delegated tasks on the task executor", peerAddr, tasks.size());
+			executor.execute(() -> {
+				DtlsEvents.DelegatedTasks event = new DtlsEvents.DelegatedTasks();
+				event.begin();
+				long start = System.nanoTime();
+				try {
+					for (Runnable task : tasks) {
+						task.run();
+					}
+					metrics.taskLatency.record(System.nanoTime() - start);
+				} catch (Exception exc) {
+					// the engine reports the failure on the next operation
+					Log.severe("{} Exception while executing delegated task", peerAddr);
+					Log.stackTrace(exc);
+				}
+				commit(event, tasks.size(), true);
+				server.resume(this);
+			});
+			return;
+		}
+
+		DtlsEvents.DelegatedTasks event = new DtlsEvents.DelegatedTasks();
+		event.begin();
+		long start = System.nanoTime();
+		int tasks = 0;
+		Runnable runnable;
+		while ((runnable = engine.getDelegatedTask()) != null) {
+			runnable.run();
+			tasks++;
+		}
+		metrics.taskLatency.record(System.nanoTime() - start);
+		commit(event, tasks, false);
+
+		SSLEngineResult.HandshakeStatus hs = engine.getHandshakeStatus();
+		if (hs == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+			throw new Exception("handshake shouldn't need additional tasks");
+		}
+	}
+
+	/*
+	 * Buffer sizes grow once a cipher suite is negotiated, so they are taken from
+	 * the handshake session while there is one.
+	 */
+	private ByteBuffer leasePacketBuffer() {
+		SSLSession session = engine.getHandshakeSession();
+		if (session == null) {
+			session = engine.getSession();
+		}
+		return server.getPacketPool().lease(session.getPacketBufferSize());
+	}
+
+	private ByteBuffer leaseAppBuffer() {
+		SSLSession session = engine.getHandshakeSession();
+		if (session == null) {
+			session = engine.getSession();
+		}
+		return server.getAppPool().lease(session.getApplicationBufferSize());
+	}
+
+	/*
+	 * Records are counted by the wraps and unwraps which produce or consume any,
+	 * a wrap may well put several handshake messages in one record.
+	 */
+	private SSLEngineResult wrap(ByteBuffer src, ByteBuffer dst) throws SSLException {
+		DtlsEvents.EngineOperation event = new DtlsEvents.EngineOperation();
+		event.begin();
+		SSLEngineResult r = engine.wrap(src, dst);
+		commit(event, "wrap", r);
+		logResult("wrap", r);
+		if (r.bytesProduced() > 0) {
+			metrics.recordsOut.increment();
+		}
+		return r;
+	}
+
+	private SSLEngineResult unwrap(ByteBuffer src, ByteBuffer dst) throws SSLException {
+		DtlsEvents.EngineOperation event = new DtlsEvents.EngineOperation();
+		event.begin();
+		SSLEngineResult r = engine.unwrap(src, dst);
+		commit(event, "unwrap", r);
+		logResult("unwrap", r);
+		if (r.bytesConsumed() > 0) {
+			metrics.recordsIn.increment();
+		}
+		return r;
+	}
+
+	private void commit(DtlsEvents.EngineOperation event, String operation, SSLEngineResult result) {
+		if (event.shouldCommit()) {
+			event.peer = peerAddr.toString();
+			event.operation = operation;
+			event.status = result.getStatus().name();
+			event.handshakeStatus = result.getHandshakeStatus().name();
+			event.bytesConsumed = result.bytesConsumed();
+			event.bytesProduced = result.bytesProduced();
+			event.commit();
+		}
+	}
+
+	private void commit(DtlsEvents.DelegatedTasks event, int tasks, boolean onTaskExecutor) {
+		if (event.shouldCommit()) {
+			event.peer = peerAddr.toString();
+			event.tasks = tasks;
+			event.onTaskExecutor = onTaskExecutor;
+			event.commit();
+		}
+	}
+
+	private void logResult(String operation, SSLEngineResult result) {
+		Log.info("{} {} result: {}", peerAddr, operation, result);
+	}
+}
@@ -0,0 +1,56 @@
+package example;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs input sequences of datagrams against fresh SSLEngines, collecting what
+ * is sent back for each datagram, as a learner asking queries would.
+ *
+ * The server is never started, every query gets a session of its own which is
+ * driven on the calling thread. The server's transport must be a
+ * {@link MemoryTransport}, and the server should have no task executor, so
+ * that all output is there once a datagram has been handled.
+ */
+class QueryExecutor {
+	// the address the queries are made from, sessions never outlive a query
+	private static final InetSocketAddress PEER_ADDRESS = new InetSocketAddress("localhost", 1);
+
+	private final DtlsServer server;
+	private final MemoryTransport transport;
+	private final DtlsServerConfig config;
+
+	QueryExecutor(DtlsServer server, MemoryTransport transport, DtlsServerConfig config) {
+		this.server = server;
+		this.transport = transport;
+		this.config = config;
+	}
+
+	/*
+	 * Returns, for every input datagram, the datagrams sent in response.
+	 */
+	List<List<ByteBuffer>> execute(List<ByteBuffer> inputs) throws Exception {
+		PeerSession session = new PeerSession(server, PEER_ADDRESS, config);
+		List<List<ByteBuffer>> outputs = new ArrayList<>(inputs.size());
+		try {
+			for (ByteBuffer input : inputs) {
+				ByteBuffer packet = server.getPacketPool().lease(input.remaining());
+				packet.put(input).flip();
+				session.handle(packet);
+
+				List<ByteBuffer> output = new ArrayList<>();
+				ByteBuffer datagram;
+				while ((datagram = transport.poll(PEER_ADDRESS)) != null) {
+					output.add(datagram);
+				}
+				outputs.add(output);
+			}
+		} finally {
+			// the server never runs, so neither do the session's timeouts
+			session.close();
+		}
+		return outputs;
+	}
+}
@@ -0,0 +1,182 @@
+package example;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latencies of the handshakes and echoes of one or more servers.
+ *
+ * Handshakes are timed as a whole and by the step the engine asks for: how
+ * long it waits for the peer in NEED_UNWRAP, produces a flight in NEED_WRAP
+ * and runs delegated tasks in NEED_TASK. Roughly, tasks are the crypto, wraps
+ * the crypto and I/O of sending, and the waits the network and the peer plus
+ * however long the server took to get to the datagram. Echoes are timed from
+ * the record being unwrapped until its echo is sent.
+ *
+ * All counters and histograms can be updated from any thread without locking.
+ */
+public class ServerMetrics implements ServerMetricsMBean {
+	static final String OBJECT_NAME = "example:type=ServerMetrics";
+
+	final LongAdder handshakesStarted = new LongAdder();
+	final LongAdder handshakesCompleted = new LongAdder();
+	final LongAdder handshakesFailed = new LongAdder();
+	// new sessions not admitted, see AdmissionControl
+	final LongAdder handshakesRejected = new LongAdder();
+	final LongAdder recordsIn = new LongAdder();
+	final LongAdder recordsOut = new LongAdder();
+	final LongAdder bytesIn = new LongAdder();
+	final LongAdder bytesOut = new LongAdder();
+	final LongAdder evictedHalfOpen = new LongAdder();
+	final LongAdder evictedEstablished = new LongAdder();
+
+	final LatencyHistogram handshakeLatency = new LatencyHistogram();
+	final LatencyHistogram unwrapWaitLatency = new LatencyHistogram();
+	final LatencyHistogram wrapLatency = new LatencyHistogram();
+	final LatencyHistogram taskLatency = new LatencyHistogram();
+	final LatencyHistogram echoLatency = new LatencyHistogram();
+
+	/*
+	 * Registers the metrics with the platform MBean server.
+	 */
+	void register() throws JMException {
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+	}
+
+	@Override
+	public long getHandshakesStarted() {
+		return handshakesStarted.sum();
+	}
+
+	@Override
+	public long getHandshakesCompleted() {
+		return handshakesCompleted.sum();
+	}
+
+	@Override
+	public long getHandshakesFailed() {
+		return handshakesFailed.sum();
+	}
+
+	@Override
+	public long getHandshakesRejected() {
+		return handshakesRejected.sum();
+	}
+
+	@Override
+	public long getRecordsIn() {
+		return recordsIn.sum();
+	}
+
+	@Override
+	public long getRecordsOut() {
+		return recordsOut.sum();
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	@Override
+	public long getEvictedHalfOpen() {
+		return evictedHalfOpen.sum();
+	}
+
+	@Override
+	public long getEvictedEstablished() {
+		return evictedEstablished.sum();
+	}
+
+	@Override
+	public double getHandshakeMeanMillis() {
+		return toMillis(handshakeLatency.getMean());
+	}
+
+	@Override
+	public double getHandshakeP99Millis() {
+		return toMillis(handshakeLatency.getPercentile(99));
+	}
+
+	@Override
+	public double getUnwrapWaitMeanMillis() {
+		return toMillis(unwrapWaitLatency.getMean());
+	}
+
+	@Override
+	public double getUnwrapWaitP99Millis() {
+		return toMillis(unwrapWaitLatency.getPercentile(99));
+	}
+
+	@Override
+	public double getWrapMeanMillis() {
+		return toMillis(wrapLatency.getMean());
+	}
+
+	@Override
+	public double getWrapP99Millis() {
+		return toMillis(wrapLatency.getPercentile(99));
+	}
+
+	@Override
+	public double getTaskMeanMillis() {
+		return toMillis(taskLatency.getMean());
+	}
+
+	@Override
+	public double getTaskP99Millis() {
+		return toMillis(taskLatency.getPercentile(99));
+	}
+
+	@Override
+	public double getEchoMeanMillis() {
+		return toMillis(echoLatency.getMean());
+	}
+
+	@Override
+	public double getEchoP99Millis() {
+		return toMillis(echoLatency.getPercentile(99));
+	}
+
+	/*
+	 * All metrics on a single line.
+	 */
+	@Override
+	public String getSummary() {
+		return "handshakes started=" + getHandshakesStarted() + " completed=" + getHandshakesCompleted()
+				+ " failed=" + getHandshakesFailed() + " rejected=" + getHandshakesRejected()
+				+ "; records in=" + getRecordsIn() + " out=" + getRecordsOut()
+				+ "; bytes in=" + getBytesIn() + " out=" + getBytesOut()
+				+ "; evicted half-open=" + getEvictedHalfOpen() + " established=" + getEvictedEstablished()
+				+ "; handshake " + handshakeLatency.summary()
+				+ "; unwrap-wait " + unwrapWaitLatency.summary()
+				+ "; wrap " + wrapLatency.summary()
+				+ "; task " + taskLatency.summary()
+				+ "; echo " + echoLatency.summary();
+	}
+
+	@Override
+	public void reset() {
+		for (LongAdder counter : new LongAdder[] { handshakesStarted, handshakesCompleted, handshakesFailed,
+				handshakesRejected, recordsIn, recordsOut, bytesIn, bytesOut, evictedHalfOpen, evictedEstablished }) {
+			counter.reset();
+		}
+		for (LatencyHistogram histogram : new LatencyHistogram[] { handshakeLatency, unwrapWaitLatency,
+				wrapLatency, taskLatency, echoLatency }) {
+			histogram.reset();
+		}
+	}
+
+	private static double toMillis(double nanos) {
+		return nanos / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+}
@@ -0,0 +1,52 @@
+package example;
+
+/**
+ * The management interface of {@link ServerMetrics}, latencies are in
+ * milliseconds.
+ */
+public interface ServerMetricsMBean {
+
+	long getHandshakesStarted();
+
+	long getHandshakesCompleted();
+
+	long getHandshakesFailed();
+
+	long getHandshakesRejected();
+
+	long getRecordsIn();
+
+	long getRecordsOut();
+
+	long getBytesIn();
+
+	long getBytesOut();
+
+	long getEvictedHalfOpen();
+
+	long getEvictedEstablished();
+
+	double getHandshakeMeanMillis();
+
+	double getHandshakeP99Millis();
+
+	double getUnwrapWaitMeanMillis();
+
+	double getUnwrapWaitP99Millis();
+
+	double getWrapMeanMillis();
+
+	double getWrapP99Millis();
+
+	double getTaskMeanMillis();
+
+	double getTaskP99Millis();
+
+	double getEchoMeanMillis();
+
+	double getEchoP99Millis();
+
+	String getSummary();
+
+	void reset();
+}
@@ -0,0 +1,101 @@
+package example;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Keeps servers ready to be handed out, so that a reset does not have to wait
+ * for a server to be created and started, or for the previous one to stop.
+ *
+ * A background thread fills the pool with servers which are bound (to a port
+ * of their own) and running. Servers which are no longer needed are stopped
+ * on another background thread.
+ */
+class ServerPool {
+	private final Supplier<DtlsServer> supplier;
+	private final BlockingQueue<DtlsServer> ready;
+	private final Thread filler;
+	private final ExecutorService teardown;
+
+	ServerPool(Supplier<DtlsServer> supplier, int size) {
+		this.supplier = supplier;
+		this.ready = new ArrayBlockingQueue<>(size);
+		this.filler = new Thread(this::fill, "server-pool");
+		this.filler.setDaemon(true);
+		this.teardown = Executors.newSingleThreadExecutor(r -> {
+			Thread thread = new Thread(r, "server-teardown");
+			thread.setDaemon(true);
+			return thread;
+		});
+		filler.start();
+	}
+
+	/*
+	 * Returns a running server, waiting for one if the pool is empty.
+	 */
+	DtlsServer take() throws InterruptedException {
+		while (true) {
+			DtlsServer server = ready.poll(100, TimeUnit.MILLISECONDS);
+			if (server != null && server.isRunning()) {
+				return server;
+			}
+			if (server == null && !filler.isAlive()) {
+				throw new IllegalStateException("The server pool has stopped");
+			}
+		}
+	}
+
+	/*
+	 * Stops the server in the background.
+	 */
+	void retire(DtlsServer server) {
+		teardown.execute(() -> stop(server));
+	}
+
+	void close() {
+		filler.interrupt();
+		DtlsServer server;
+		while ((server = ready.poll()) != null) {
+			server.interrupt();
+		}
+		teardown.shutdown();
+	}
+
+	private void fill() {
+		DtlsServer server = null;
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				server = supplier.get();
+				server.start();
+				// waiting for the server to start running
+				while (!server.isRunning()) {
+					Thread.sleep(1);
+				}
+				ready.put(server);
+				server = null;
+			}
+		} catch (InterruptedException e) {
+			// the server not yet in the pool is not drained by close()
+			if (server != null) {
+				server.interrupt();
+			}
+			Log.info("server pool has been closed");
+		} catch (RuntimeException e) {
+			Log.severe("Could not create a server for the pool");
+			Log.stackTrace(e);
+		}
+	}
+
+	private static void stop(DtlsServer server) {
+		server.interrupt();
+		try {
+			server.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
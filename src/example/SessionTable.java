@@ -0,0 +1,113 @@
+package example;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The server's sessions by peer address, bounded in number.
+ *
+ * The limit is the smaller of a maximum number of sessions and what fits in a
+ * memory budget, at an estimated footprint per session. Once a new session
+ * would exceed it, the least recently used sessions are evicted, sessions
+ * which have yet to finish a handshake before those which have. Half-open
+ * sessions are cheap to make for anyone who can send datagrams, established
+ * ones took a full handshake.
+ *
+ * Only used on the server thread.
+ */
+class SessionTable {
+	// estimated memory held by a session, about 5 KB were measured with the
+	// engine halfway through the handshake as well as afterwards
+	static final long SESSION_FOOTPRINT = 8 * 1024;
+
+	// both in access order, so the eldest entry is the least recently used
+	private final LinkedHashMap<InetSocketAddress, PeerSession> halfOpen = new LinkedHashMap<>(16, 0.75f, true);
+	private final LinkedHashMap<InetSocketAddress, PeerSession> established = new LinkedHashMap<>(16, 0.75f, true);
+	private final int capacity;
+
+	/*
+	 * 0 for either setting means no limit.
+	 */
+	SessionTable(int maxSessions, long memoryBudget) {
+		long capacity = maxSessions > 0 ? maxSessions : Integer.MAX_VALUE;
+		if (memoryBudget > 0) {
+			capacity = Math.min(capacity, Math.max(1, memoryBudget / SESSION_FOOTPRINT));
+		}
+		this.capacity = (int) capacity;
+	}
+
+	PeerSession get(InetSocketAddress peerAddr) {
+		PeerSession session = established.get(peerAddr);
+		return session != null ? session : halfOpen.get(peerAddr);
+	}
+
+	/*
+	 * Adds a new session, returning the sessions evicted to make room for it.
+	 * The evicted sessions still have to be closed.
+	 */
+	List<PeerSession> add(PeerSession session) {
+		List<PeerSession> evicted = new ArrayList<>();
+		while (size() >= capacity) {
+			PeerSession eldest = evictHalfOpen();
+			if (eldest == null) {
+				eldest = evictEldest(established);
+			}
+			evicted.add(eldest);
+		}
+		halfOpen.put(session.getPeerAddress(), session);
+		return evicted;
+	}
+
+	/*
+	 * Removes the session, if it is still the one of its peer.
+	 */
+	void remove(PeerSession session) {
+		InetSocketAddress peerAddr = session.getPeerAddress();
+		if (!established.remove(peerAddr, session)) {
+			halfOpen.remove(peerAddr, session);
+		}
+	}
+
+	int size() {
+		return halfOpen.size() + established.size();
+	}
+
+	int getCapacity() {
+		return capacity;
+	}
+
+	Collection<PeerSession> sessions() {
+		List<PeerSession> sessions = new ArrayList<>(halfOpen.values());
+		sessions.addAll(established.values());
+		return sessions;
+	}
+
+	/*
+	 * Sessions are only moved to the established ones once they come up for
+	 * eviction, so every session is moved at most once.
+	 */
+	private PeerSession evictHalfOpen() {
+		Iterator<PeerSession> iterator = halfOpen.values().iterator();
+		while (iterator.hasNext()) {
+			PeerSession session = iterator.next();
+			iterator.remove();
+			if (!session.isEstablished()) {
+				return session;
+			}
+			established.put(session.getPeerAddress(), session);
+		}
+		return null;
+	}
+
+	private static PeerSession evictEldest(Map<InetSocketAddress, PeerSession> sessions) {
+		Iterator<PeerSession> iterator = sessions.values().iterator();
+		PeerSession session = iterator.next();
+		iterator.remove();
+		return session;
+	}
+}
@@ -0,0 +1,116 @@
+package example;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+import javax.net.ssl.SSLContext;
+
+/**
+ * A DTLS server spread over several {@link DtlsServer}s, the shards, each
+ * with a socket of its own bound to the same port with SO_REUSEPORT.
+ *
+ * The kernel hashes the peers' addresses to pick the socket a datagram goes
+ * to, so a peer always lands on the same shard. Each shard has its own server
+ * thread, sessions, timer wheel and buffers, so the server can make use of as
+ * many cores as it has shards. What the shards do share is:
+ * <ul>
+ *  <li> the SSLContext, or the supplier of it, and the task executor; </li>
+ *  <li> the {@link AdmissionControl}, so new sessions are limited for the shards
+ *  together, as for a single server; </li>
+ *  <li> the {@link ServerMetrics}, whose counters and histograms all shards
+ *  record into, so stats cover the whole server; </li>
+ *  <li> the {@link PacketCapture}, whose file all shards append to. </li>
+ * </ul>
+ */
+public class ShardedServer {
+	private final DtlsServer[] shards;
+
+	public ShardedServer(DtlsServerConfig config, SSLContext sslContext, Executor taskExecutor)
+			throws GeneralSecurityException, IOException {
+		shards = new DtlsServer[config.getShards()];
+		InetSocketAddress address = new InetSocketAddress(config.getHostname(), config.getPort());
+		AdmissionControl admissionControl = AdmissionControl.isEnabled(config) ? new AdmissionControl(config) : null;
+		for (int i = 0; i < shards.length; i++) {
+			ChannelTransport transport = null;
+			try {
+				transport = new ChannelTransport(address, true);
+				shards[i] = new DtlsServer(config, sslContext, taskExecutor, transport);
+			} catch (GeneralSecurityException | IOException | RuntimeException e) {
+				// the shards created so far close their transports, this one has no shard yet
+				if (transport != null) {
+					try {
+						transport.close();
+					} catch (IOException closeException) {
+						e.addSuppressed(closeException);
+					}
+				}
+				interrupt();
+				throw e;
+			}
+			shards[i].setName("shard-" + i);
+			if (admissionControl != null) {
+				shards[i].setAdmissionControl(admissionControl);
+			}
+			// an ephemeral port is picked by the first shard, the others join it
+			address = new InetSocketAddress(config.getHostname(), shards[0].getPort());
+		}
+	}
+
+	void setSSLContextSupplier(Supplier<SSLContext> sslContextSupplier) {
+		for (DtlsServer shard : shards) {
+			shard.setSSLContextSupplier(sslContextSupplier);
+		}
+	}
+
+	void setMetrics(ServerMetrics metrics) {
+		for (DtlsServer shard : shards) {
+			shard.setMetrics(metrics);
+		}
+	}
+
+	void setPacketCapture(PacketCapture capture) {
+		for (DtlsServer shard : shards) {
+			shard.setPacketCapture(capture);
+		}
+	}
+
+	public void start() {
+		for (DtlsServer shard : shards) {
+			shard.start();
+		}
+	}
+
+	/**
+	 * Runs the shards until they have all been interrupted.
+	 */
+	public void run() throws InterruptedException {
+		start();
+		for (DtlsServer shard : shards) {
+			shard.join();
+		}
+	}
+
+	public void interrupt() {
+		for (DtlsServer shard : shards) {
+			if (shard != null) {
+				shard.interrupt();
+			}
+		}
+	}
+
+	public Integer getPort() {
+		return shards[0].getPort();
+	}
+
+	public boolean isRunning() {
+		for (DtlsServer shard : shards) {
+			if (!shard.isRunning()) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -1,34 +1,63 @@
 package example;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Supplier;
 
 /**
  * We use this class to avoid having to restart the vm (which is can be a slow process). 
+ * 
+ * Servers are taken from a {@link ServerPool}, so a reset only has to swap the
+ * running server for one which is already up.
+ * 
+ * Any number of command connections can be open at once, e.g. one per learner
+ * run in parallel. Each gets a {@link CommandSession} with a server of its own,
+ * all of them sharing the SSLContext and the code the JIT has compiled so far.
+ * The thread starter shuts down on an exit command, once the last open
+ * connection has been closed, or once no connection has been made for the
+ * accept timeout while no command sessions are open.
  */
 // This could be made more general but...
 public class ThreadStarter {
 	
-	private Supplier<DtlsServer> supplier;
+	// number of servers kept ready by default
+	static final int POOL_SIZE = 2;
+	
+	private ServerPool serverPool;
+	private Supplier<QueryExecutor> queryExecutorSupplier;
 	private ServerSocket srvSocket;
-	private DtlsServer dtlsServerThread;
-	private Socket cmdSocket;
+	private Set<CommandSession> commandSessions;
 	private Integer port;
+	private ServerMetrics metrics;
 
 	public ThreadStarter(Supplier<DtlsServer> supplier, String ipPort) throws IOException {
+		this(supplier, ipPort, POOL_SIZE);
+	}
+	
+	/**
+	 * @param poolSize number of servers kept ready for resets
+	 */
+	public ThreadStarter(Supplier<DtlsServer> supplier, String ipPort, int poolSize) throws IOException {
+		this(supplier, null, ipPort, poolSize);
+	}
+	
+	/*
+	 * Each command session gets a query executor of its own from the supplier, 
+	 * without one queries are not supported. 
+	 */
+	ThreadStarter(Supplier<DtlsServer> supplier, Supplier<QueryExecutor> queryExecutorSupplier, String ipPort, 
+			int poolSize) throws IOException {
+		this.queryExecutorSupplier = queryExecutorSupplier;
 		String[] args = ipPort.split("\\:");
 		port = Integer.valueOf(args[1]);
 		InetSocketAddress address = new InetSocketAddress(args[0], Integer.valueOf(args[1]));
-		this.supplier = supplier;
+		serverPool = new ServerPool(supplier, poolSize);
+		commandSessions = ConcurrentHashMap.newKeySet();
 		srvSocket = new ServerSocket();
 		srvSocket.setReuseAddress(true);
 		srvSocket.setSoTimeout(20000);
@@ -48,66 +77,66 @@ public class ThreadStarter {
 	
 	public void run() throws IOException {
 		System.out.println("Listening at " + srvSocket.getInetAddress() + ":" + srvSocket.getLocalPort());
-		cmdSocket = srvSocket.accept();
-		BufferedReader in = new BufferedReader(new InputStreamReader(cmdSocket.getInputStream()));
-		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(cmdSocket.getOutputStream()));
-		dtlsServerThread = null;
-		while (true) {
+		while (!srvSocket.isClosed()) {
 			try {
-				String cmd = in.readLine();
-				System.out.println("Received: " + cmd);
-				if (cmd != null) {
-					switch(cmd.trim()) {
-					case "reset":
-					case "":
-						
-						if (dtlsServerThread != null) {
-							dtlsServerThread.interrupt();
-							// waiting for the thread to die,
-							// otherwise we might get address already in use problems
-							while (dtlsServerThread.isAlive()) {
-								Thread.sleep(1);
-							}
-						}
-						dtlsServerThread = supplier.get();
-						dtlsServerThread.start();
-						
-						// waiting for the server to start running
-						while(!dtlsServerThread.isRunning()) {
-							Thread.sleep(1);
-						}
-						
-						out.write(String.valueOf(dtlsServerThread.getPort()));
-						out.newLine();
-						out.flush();
-						break;
-					case "exit":
-						close();
-						return;
-					}
-				} else {
+				Socket cmdSocket = srvSocket.accept();
+				CommandSession session = new CommandSession(this, serverPool, queryExecutorSupplier, cmdSocket, 
+						"ts.error." + port + ".log");
+				commandSessions.add(session);
+				Thread thread = new Thread(session, "command-" + cmdSocket.getPort());
+				thread.start();
+			} catch (SocketTimeoutException e) {
+				if (commandSessions.isEmpty()) {
+					System.out.println("No command connections");
 					close();
-					return;
 				}
-			} catch (Exception e) {
-				String errorFileName = "ts.error." + port + ".log";
-				PrintWriter errorPw = new PrintWriter(new FileWriter(errorFileName));
-				e.printStackTrace(errorPw);
-				errorPw.close();
-				close();
-				return;
+			} catch (IOException e) {
+				if (!srvSocket.isClosed()) {
+					throw e;
+				}
 			}
 		}
 	}
 	
-	private void close() throws IOException {
-		System.out.println("Sutting down thread starter");
-		if (dtlsServerThread != null) {
-			dtlsServerThread.interrupt();
+	/*
+	 * The metrics the stats command reports, those the servers record into.
+	 */
+	void setMetrics(ServerMetrics metrics) {
+		this.metrics = metrics;
+	}
+
+	ServerMetrics getMetrics() {
+		return metrics;
+	}
+
+	/*
+	 * Called once a command session has ended, unless the session only closed
+	 * its own connection the thread starter shuts down with the last one.
+	 */
+	void sessionEnded(CommandSession session, boolean shutDownIfLast) {
+		commandSessions.remove(session);
+		if (shutDownIfLast && commandSessions.isEmpty()) {
+			shutDown();
+		}
+	}
+
+	void shutDown() {
+		try {
+			close();
+		} catch (IOException e) {
+			e.printStackTrace();
 		}
-		if (cmdSocket != null) {
-			cmdSocket.close();
+	}
+	
+	private synchronized void close() throws IOException {
+		if (srvSocket.isClosed()) {
+			return;
+		}
+		System.out.println("Sutting down thread starter");
+		for (CommandSession session : commandSessions) {
+			session.close();
 		}
+		serverPool.close();
 		srvSocket.close();
 	}
 }
@@ -0,0 +1,153 @@
+package example;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timing wheel, for timeouts of which there may be many (e.g. one per
+ * session) but which need not fire to the millisecond.
+ *
+ * Time is divided into ticks and the wheel has a slot for each of a number of
+ * consecutive ticks, a timeout is kept in the slot of the tick it expires in,
+ * along with the number of turns of the wheel left until then. Scheduling and
+ * cancelling a timeout is O(1), each tick only looks at a single slot.
+ *
+ * The wheel has no thread of its own, the server thread waits at most until
+ * the next tick (see {@link #getWaitMillis()}) and then calls
+ * {@link #advance()}, which runs the expired timeouts' tasks. Timeouts can be
+ * scheduled and cancelled from any thread.
+ */
+class TimerWheel {
+
+	/*
+	 * A timeout, which can be scheduled any number of times, but at most once at
+	 * a time.
+	 */
+	static class Timeout {
+		private final Runnable task;
+		private Timeout prev;
+		private Timeout next;
+		private int slot = -1;
+		private long rounds;
+
+		Timeout(Runnable task) {
+			this.task = task;
+		}
+
+		boolean isScheduled() {
+			return slot >= 0;
+		}
+	}
+
+	private final long tickNanos;
+	private final Timeout[] slots;
+	private final long start;
+	private long ticks;
+	private int scheduled;
+
+	TimerWheel(long tickMillis, int slotCount) {
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		this.slots = new Timeout[slotCount];
+		this.start = System.nanoTime();
+	}
+
+	/*
+	 * Schedules the timeout to expire after the delay, replacing whatever it was
+	 * scheduled for before.
+	 */
+	synchronized void schedule(Timeout timeout, long delayMillis) {
+		unlink(timeout);
+		// rounded up to whole ticks
+		long delayTicks = Math.max(1, (TimeUnit.MILLISECONDS.toNanos(delayMillis) + tickNanos - 1) / tickNanos);
+		// the wheel may lag behind the clock, expiry is counted from the clock,
+		// the turns until then from where the wheel is
+		long expiry = Math.max(ticks, currentTick()) + delayTicks;
+		timeout.rounds = (expiry - ticks - 1) / slots.length;
+		int slot = (int) (expiry % slots.length);
+		timeout.slot = slot;
+		timeout.prev = null;
+		timeout.next = slots[slot];
+		if (timeout.next != null) {
+			timeout.next.prev = timeout;
+		}
+		slots[slot] = timeout;
+		scheduled++;
+	}
+
+	synchronized void cancel(Timeout timeout) {
+		unlink(timeout);
+	}
+
+	/*
+	 * Milliseconds until the next tick, 0 if there is nothing scheduled, in which
+	 * case there is no need to wake up for the wheel.
+	 */
+	synchronized long getWaitMillis() {
+		if (scheduled == 0) {
+			return 0;
+		}
+		long nextTick = start + (ticks + 1) * tickNanos;
+		return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nextTick - System.nanoTime()));
+	}
+
+	/*
+	 * Moves the wheel up to the current time and runs the tasks of the timeouts
+	 * which expired on the way.
+	 */
+	void advance() {
+		List<Timeout> expired = null;
+		synchronized (this) {
+			long now = currentTick();
+			while (ticks < now) {
+				ticks++;
+				if (scheduled == 0) {
+					ticks = now;
+					break;
+				}
+				Timeout timeout = slots[(int) (ticks % slots.length)];
+				while (timeout != null) {
+					Timeout next = timeout.next;
+					if (timeout.rounds == 0) {
+						unlink(timeout);
+						if (expired == null) {
+							expired = new ArrayList<>();
+						}
+						expired.add(timeout);
+					} else {
+						timeout.rounds--;
+					}
+					timeout = next;
+				}
+			}
+		}
+		// tasks may well schedule timeouts again
+		if (expired != null) {
+			for (Timeout timeout : expired) {
+				timeout.task.run();
+			}
+		}
+	}
+
+	private long currentTick() {
+		return (System.nanoTime() - start) / tickNanos;
+	}
+
+	private void unlink(Timeout timeout) {
+		if (timeout.slot < 0) {
+			return;
+		}
+		if (timeout.prev != null) {
+			timeout.prev.next = timeout.next;
+		} else {
+			slots[timeout.slot] = timeout.next;
+		}
+		if (timeout.next != null) {
+			timeout.next.prev = timeout.prev;
+		}
+		timeout.prev = null;
+		timeout.next = null;
+		timeout.slot = -1;
+		scheduled--;
+	}
+}